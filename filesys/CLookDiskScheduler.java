@@ -0,0 +1,43 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * The circular elevator algorithm. The head only serves requests while
+ * moving toward higher sectors, and when none are left ahead of it, it
+ * jumps back to the lowest waiting request. Every request waits for at most
+ * one sweep, and requests in the middle of the disk are not favored.
+ */
+public class CLookDiskScheduler implements DiskScheduler {
+    /**
+     * Allocate a new C-LOOK disk scheduler.
+     */
+    public CLookDiskScheduler() {
+    }
+
+    public int chooseRequest(List<DiskRequest> queue, int headSector) {
+	int ahead = -1, lowest = -1;
+
+	for (int i=0; i<queue.size(); i++) {
+	    int sector = queue.get(i).sector;
+
+	    if (sector >= headSector &&
+		(ahead == -1 || sector < queue.get(ahead).sector))
+		ahead = i;
+
+	    if (lowest == -1 || sector < queue.get(lowest).sector)
+		lowest = i;
+	}
+
+	if (ahead == -1)
+	    numWraps++;
+
+	return (ahead != -1) ? ahead : lowest;
+    }
+
+    public String getStatistics() {
+	return "wraps " + numWraps;
+    }
+
+    private int numWraps = 0;
+}
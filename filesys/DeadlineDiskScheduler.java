@@ -0,0 +1,62 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.List;
+
+/**
+ * Serves requests in C-LOOK order, except that a request that has waited
+ * longer than its deadline is served at once. Reads have a shorter deadline
+ * (<tt>DeadlineDiskScheduler.readDeadline</tt>) than writes
+ * (<tt>DeadlineDiskScheduler.writeDeadline</tt>), since a thread is
+ * usually blocked waiting for a read, so expired reads are served first.
+ */
+public class DeadlineDiskScheduler extends CLookDiskScheduler {
+    /**
+     * Allocate a new deadline disk scheduler.
+     */
+    public DeadlineDiskScheduler() {
+	readDeadline = Config.getInteger("DeadlineDiskScheduler.readDeadline",
+					 5000);
+	writeDeadline = Config.getInteger("DeadlineDiskScheduler.writeDeadline",
+					  25000);
+    }
+
+    public int chooseRequest(List<DiskRequest> queue, int headSector) {
+	long time = Machine.timer().getTime();
+
+	// the queue is in arrival order, so the first of each kind is oldest
+	int oldestRead = -1, oldestWrite = -1;
+	for (int i=0; i<queue.size() && (oldestRead == -1 || oldestWrite == -1);
+	     i++) {
+	    if (queue.get(i).write) {
+		if (oldestWrite == -1)
+		    oldestWrite = i;
+	    }
+	    else if (oldestRead == -1) {
+		oldestRead = i;
+	    }
+	}
+
+	if (oldestRead != -1 &&
+	    time - queue.get(oldestRead).arrivalTime > readDeadline) {
+	    numExpired++;
+	    return oldestRead;
+	}
+
+	if (oldestWrite != -1 &&
+	    time - queue.get(oldestWrite).arrivalTime > writeDeadline) {
+	    numExpired++;
+	    return oldestWrite;
+	}
+
+	return super.chooseRequest(queue, headSector);
+    }
+
+    public String getStatistics() {
+	return super.getStatistics() + ", expired " + numExpired;
+    }
+
+    private int readDeadline, writeDeadline;
+    private int numExpired = 0;
+}
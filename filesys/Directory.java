@@ -0,0 +1,148 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * The contents of a directory, which is stored as a file of fixed-size
+ * entries. Each entry holds an inode number, 0 if the entry is unused, and
+ * a name of up to <tt>maxNameLength</tt> bytes.
+ *
+ * <p>
+ * When a directory is loaded, its names are indexed in a hash table, so
+ * finding a name does not scan the entries, and the file system keeps the
+ * loaded directory for later lookups.
+ */
+class Directory {
+    /**
+     * Load a directory's entries and index them.
+     *
+     * @param	fileSystem	the file system holding the directory.
+     * @param	inode		the directory's inode.
+     */
+    Directory(DiskFileSystem fileSystem, Inode inode) {
+	this.fileSystem = fileSystem;
+	this.inode = inode;
+
+	int numEntries = inode.length / entrySize;
+	numSlots = numEntries;
+
+	byte[] data = new byte[numEntries*entrySize];
+	fileSystem.readFile(inode, 0, data, 0, data.length);
+
+	for (int i=0; i<numEntries; i++) {
+	    int inumber = Lib.bytesToInt(data, i*entrySize);
+	    if (inumber != 0) {
+		String name = Lib.bytesToString(data, i*entrySize+4,
+						maxNameLength+1);
+		index.put(name, new Entry(i, inumber));
+	    }
+	    else {
+		freeSlots.add(i);
+	    }
+	}
+    }
+
+    /**
+     * Look up a name in this directory.
+     *
+     * @param	name	the name to find.
+     * @return	the inode number it refers to, or -1 if it is not present.
+     */
+    int find(String name) {
+	Entry entry = index.get(name);
+	return (entry == null) ? -1 : entry.inumber;
+    }
+
+    /**
+     * Add an entry to this directory, and write it to disk.
+     *
+     * @param	name	the new name, which must not be present.
+     * @param	inumber	the inode number it refers to.
+     * @return	<tt>true</tt> if the entry was added.
+     */
+    boolean add(String name, int inumber) {
+	Lib.assertTrue(!index.containsKey(name));
+
+	int i = freeSlots.isEmpty() ? numSlots : freeSlots.first();
+
+	byte[] entry = new byte[entrySize];
+	Lib.bytesFromInt(entry, 0, inumber);
+	byte[] nameBytes = name.getBytes();
+	Lib.assertTrue(nameBytes.length <= maxNameLength);
+	System.arraycopy(nameBytes, 0, entry, 4, nameBytes.length);
+
+	if (fileSystem.writeFile(inode, i*entrySize, entry, 0, entrySize)
+	    != entrySize)
+	    return false;
+
+	if (i == numSlots)
+	    numSlots++;
+	else
+	    freeSlots.remove(i);
+
+	index.put(name, new Entry(i, inumber));
+
+	return true;
+    }
+
+    /**
+     * Remove an entry from this directory, and write the change to disk.
+     *
+     * @param	name	the name to remove.
+     * @return	<tt>true</tt> if the name was present.
+     */
+    boolean remove(String name) {
+	Entry entry = index.remove(name);
+	if (entry == null)
+	    return false;
+
+	fileSystem.writeFile(inode, entry.slot*entrySize, new byte[entrySize],
+			     0, entrySize);
+
+	freeSlots.add(entry.slot);
+	return true;
+    }
+
+    /**
+     * Test whether this directory has no entries.
+     *
+     * @return	<tt>true</tt> if every entry is unused.
+     */
+    boolean isEmpty() {
+	return index.isEmpty();
+    }
+
+    /**
+     * Return the names in this directory.
+     *
+     * @return	the names of the entries in use.
+     */
+    String[] list() {
+	return index.keySet().toArray(new String[0]);
+    }
+
+    private static class Entry {
+	Entry(int slot, int inumber) {
+	    this.slot = slot;
+	    this.inumber = inumber;
+	}
+
+	int slot;
+	int inumber;
+    }
+
+    private DiskFileSystem fileSystem;
+    private Inode inode;
+    private HashMap<String,Entry> index = new HashMap<String,Entry>();
+    /** Unused entries, which are reused before the directory grows. */
+    private TreeSet<Integer> freeSlots = new TreeSet<Integer>();
+    private int numSlots;
+
+    /** The size of a directory entry on disk, in bytes. */
+    static final int entrySize = 32;
+    /** The longest name a directory entry can hold, in bytes. */
+    static final int maxNameLength = entrySize-5;
+}
@@ -0,0 +1,872 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * A file system stored on the simulated disk. Files are described by inodes
+ * kept in a fixed-size inode table, and their data is stored in extents of
+ * consecutive sectors, which are allocated from a free-sector bitmap.
+ * Directories are files of <tt>Directory</tt> entries, and names are paths
+ * of directory names separated by <tt>/</tt>, starting at the root
+ * directory.
+ *
+ * <p>
+ * The disk is laid out as a superblock in sector 0, then the bitmap, then
+ * the inode table, then the journal, then the data sectors. The bitmap and
+ * the inode table are kept in memory once the file system is mounted.
+ * Changes to them and to directories are recorded in a write-ahead
+ * <tt>Journal</tt>, which is committed before each operation returns and
+ * replayed when the disk is next mounted, so a crash never leaves the
+ * metadata half updated. File data is not logged, but it is written before
+ * the metadata that refers to it is committed. Reads and writes of open
+ * files release the file system lock while their data is transferred, so
+ * requests from several processes can be waiting for the disk at once and
+ * <tt>SynchDisk</tt> can schedule them.
+ *
+ * <p>
+ * Directories are loaded and indexed by name the first time they are used,
+ * and kept in memory. The inode numbers of the most recently used paths, up
+ * to <tt>DiskFileSystem.numNames</tt> of them, are also remembered, as is
+ * the absence of a path that was looked up and not found, so looking up a
+ * frequently used name does not walk the directories at all.
+ *
+ * <p>
+ * The disk is formatted the first time it is used, or whenever
+ * <tt>DiskFileSystem.format</tt> is true. When it is formatted, the files
+ * named in <tt>DiskFileSystem.importFiles</tt> (a comma-separated list) are
+ * copied into the root directory from the stub file system, so that there
+ * are programs to run.
+ */
+public class DiskFileSystem implements FlushableFileSystem {
+    /**
+     * Allocate a new disk file system. The disk is not read until the file
+     * system is first used, since that requires threads to wait on.
+     */
+    public DiskFileSystem() {
+	Lib.assertTrue(Machine.disk() != null,
+		       "DiskFileSystem requires Machine.disk");
+
+	disk = new SynchDisk(Machine.disk());
+	numNames = Config.getInteger("DiskFileSystem.numNames", 64);
+	Lib.assertTrue(numNames >= 0);
+
+	lock = new Lock();
+	ioDone = new Condition2(lock);
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+	mount();
+	journal.begin();
+
+	Inode inode = lookup(name, create);
+	if (inode == null || inode.type != Inode.typeFile) {
+	    journal.commit();
+	    lock.release();
+	    return null;
+	}
+
+	// like the stub file system, opening to create truncates the file
+	if (create && inode.length > 0)
+	    truncate(inode);
+
+	inode.openCount++;
+
+	journal.commit();
+	lock.release();
+	return new DiskOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+	mount();
+	journal.begin();
+
+	boolean result = removePath(name);
+
+	journal.commit();
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Create a directory. Its parent directory must already exist.
+     *
+     * @param	name	the path of the new directory.
+     * @return	<tt>true</tt> if the directory was created.
+     */
+    public boolean createDirectory(String name) {
+	lock.acquire();
+	mount();
+	journal.begin();
+
+	boolean result = false;
+
+	String[] path = split(name);
+	Inode parent = (path == null) ? null : findParent(path);
+	if (parent != null) {
+	    Directory directory = getDirectory(parent);
+	    String last = path[path.length-1];
+
+	    if (directory.find(last) == -1) {
+		Inode inode = allocateInode(Inode.typeDirectory);
+		if (inode != null) {
+		    if (directory.add(last, inode.inumber)) {
+			rememberName(path, inode.inumber);
+			result = true;
+		    }
+		    else {
+			freeInode(inode);
+		    }
+		}
+	    }
+	}
+
+	journal.commit();
+	lock.release();
+	return result;
+    }
+
+    /**
+     * List the entries of a directory.
+     *
+     * @param	name	the path of the directory.
+     * @return	the names in the directory, or <tt>null</tt> if there is no
+     *		such directory.
+     */
+    public String[] list(String name) {
+	lock.acquire();
+	mount();
+
+	String[] result = null;
+
+	Inode inode = lookup(name, false);
+	if (inode != null && inode.type == Inode.typeDirectory)
+	    result = getDirectory(inode).list();
+
+	lock.release();
+	return result;
+    }
+
+    /**
+     * Read the superblock, bitmap, and inode table, formatting the disk first
+     * if necessary. Does nothing if the file system is already mounted.
+     */
+    private void mount() {
+	if (mounted)
+	    return;
+
+	mounted = true;
+
+	numSectors = disk.getNumSectors();
+	bitmapSectors = (numSectors + bitsPerSector-1) / bitsPerSector;
+	inodeSectors = (numInodes*Inode.size + Disk.sectorSize-1)
+	    / Disk.sectorSize;
+	journalSectors = Config.getInteger("DiskFileSystem.journalSectors", 64);
+	dataStart = journalStart() + journalSectors;
+
+	journal = new Journal(disk, lock, journalStart(), journalSectors);
+
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++)
+	    inodes[i] = new Inode(i);
+
+	byte[] data = new byte[Disk.sectorSize];
+	disk.readSector(superblockSector, data, 0);
+
+	if (Lib.bytesToInt(data, 0) != magic ||
+	    Lib.bytesToInt(data, 4) != numSectors ||
+	    Lib.bytesToInt(data, 20) != dataStart ||
+	    Config.getBoolean("DiskFileSystem.format", false)) {
+	    format();
+	    return;
+	}
+
+	journal.replay();
+
+	for (int i=0; i<bitmapSectors; i++) {
+	    disk.readSector(bitmapStart+i, data, 0);
+	    for (int j=0; j<bitsPerSector; j++) {
+		int sector = i*bitsPerSector + j;
+		if (sector < numSectors &&
+		    (data[j/8] & (1 << (j%8))) != 0)
+		    freeMap.set(sector);
+	    }
+	}
+
+	for (int i=0; i<inodeSectors; i++) {
+	    disk.readSector(inodeStart()+i, data, 0);
+	    for (int j=0; j<inodesPerSector; j++)
+		inodes[i*inodesPerSector+j].load(data, j*Inode.size);
+	}
+    }
+
+    private void format() {
+	System.out.print("Formatting disk...");
+
+	byte[] data = new byte[Disk.sectorSize];
+	Lib.bytesFromInt(data, 0, magic);
+	Lib.bytesFromInt(data, 4, numSectors);
+	Lib.bytesFromInt(data, 8, numInodes);
+	Lib.bytesFromInt(data, 12, bitmapStart);
+	Lib.bytesFromInt(data, 16, inodeStart());
+	Lib.bytesFromInt(data, 20, dataStart);
+	Lib.bytesFromInt(data, 24, journalStart());
+	Lib.bytesFromInt(data, 28, journalSectors);
+	disk.writeSector(superblockSector, data, 0);
+
+	journal.format();
+
+	freeMap.clear();
+	freeMap.set(0, dataStart);
+	for (int i=0; i<bitmapSectors; i++)
+	    dirtyBitmapSectors.add(i);
+
+	// inode 0 is never used, so that 0 can mark a free directory entry
+	inodes[0].type = Inode.typeDirectory;
+	inodes[rootInumber].type = Inode.typeDirectory;
+	for (int i=0; i<numInodes; i++)
+	    dirtyInodeSectors.add(i / inodesPerSector);
+
+	logMetadata();
+	journal.checkpoint();
+
+	String importFiles = Config.getString("DiskFileSystem.importFiles", "");
+	int numImported = 0;
+
+	for (String name : importFiles.split(",")) {
+	    name = name.trim();
+	    if (name.length() > 0 && importFile(name))
+		numImported++;
+	}
+
+	System.out.println(" imported " + numImported + " files");
+    }
+
+    private boolean importFile(String name) {
+	OpenFile source = Machine.stubFileSystem().open(name, false);
+	if (source == null)
+	    return false;
+
+	byte[] contents = new byte[source.length()];
+	int length = source.read(0, contents, 0, contents.length);
+	source.close();
+	if (length < 0)
+	    return false;
+
+	journal.begin();
+
+	Inode inode = lookup(name, true);
+	if (inode == null) {
+	    journal.commit();
+	    return false;
+	}
+
+	boolean result = (writeFile(inode, 0, contents, 0, length) == length);
+	journal.commit();
+
+	return result;
+    }
+
+    /**
+     * Split a path into its components.
+     *
+     * @param	name	the path.
+     * @return	the components, or <tt>null</tt> if the path is empty or a
+     *		component is too long.
+     */
+    private static String[] split(String name) {
+	java.util.LinkedList<String> list = new java.util.LinkedList<String>();
+	for (String component : name.split("/")) {
+	    // the limit is on the name as it is stored in a directory entry
+	    if (component.getBytes().length > Directory.maxNameLength)
+		return null;
+	    if (component.length() > 0)
+		list.add(component);
+	}
+
+	if (list.isEmpty())
+	    return null;
+
+	return list.toArray(new String[0]);
+    }
+
+    /**
+     * Find the directory that holds the last component of a path.
+     */
+    private Inode findParent(String[] path) {
+	Inode inode = inodes[rootInumber];
+
+	for (int i=0; i<path.length-1; i++) {
+	    int inumber = getDirectory(inode).find(path[i]);
+	    if (inumber == -1 || inodes[inumber].type != Inode.typeDirectory)
+		return null;
+
+	    inode = inodes[inumber];
+	}
+
+	return inode;
+    }
+
+    /**
+     * Find the inode a path refers to, optionally creating a file if the
+     * path does not exist.
+     */
+    private Inode lookup(String name, boolean create) {
+	if (name.equals("/"))
+	    return inodes[rootInumber];
+
+	String[] path = split(name);
+	if (path == null)
+	    return null;
+
+	Integer cached = names.get(join(path));
+	if (cached == null) {
+	    numNameMisses++;
+	}
+	else if (cached != -1) {
+	    numNameHits++;
+	    return inodes[cached];
+	}
+	else if (!create) {
+	    numNegativeHits++;
+	    return null;
+	}
+
+	Inode parent = findParent(path);
+	if (parent == null) {
+	    rememberName(path, -1);
+	    return null;
+	}
+
+	Directory directory = getDirectory(parent);
+	String last = path[path.length-1];
+
+	int inumber = directory.find(last);
+	if (inumber != -1 || !create) {
+	    rememberName(path, inumber);
+	    return (inumber == -1) ? null : inodes[inumber];
+	}
+
+	Inode inode = allocateInode(Inode.typeFile);
+	if (inode == null)
+	    return null;
+
+	if (!directory.add(last, inode.inumber)) {
+	    freeInode(inode);
+	    return null;
+	}
+
+	rememberName(path, inode.inumber);
+	return inode;
+    }
+
+    /**
+     * Return a directory's entries, loading and indexing them the first time
+     * the directory is used.
+     */
+    private Directory getDirectory(Inode inode) {
+	Directory directory = directories.get(inode.inumber);
+	if (directory == null) {
+	    directory = new Directory(this, inode);
+	    directories.put(inode.inumber, directory);
+	}
+
+	return directory;
+    }
+
+    /**
+     * Remember the inode a path refers to, or -1 if it does not exist,
+     * forgetting the least recently used path if there are too many.
+     */
+    private void rememberName(String[] path, int inumber) {
+	if (numNames == 0)
+	    return;
+
+	names.put(join(path), inumber);
+
+	if (names.size() > numNames) {
+	    Iterator<String> eldest = names.keySet().iterator();
+	    eldest.next();
+	    eldest.remove();
+	}
+    }
+
+    private static String join(String[] path) {
+	StringBuffer buffer = new StringBuffer();
+	for (String component : path)
+	    buffer.append('/').append(component);
+
+	return buffer.toString();
+    }
+
+    private boolean removePath(String name) {
+	String[] path = split(name);
+	if (path == null)
+	    return false;
+
+	Inode parent = findParent(path);
+	if (parent == null)
+	    return false;
+
+	Directory directory = getDirectory(parent);
+	String last = path[path.length-1];
+
+	int inumber = directory.find(last);
+	if (inumber == -1)
+	    return false;
+
+	Inode inode = inodes[inumber];
+	if (inode.type == Inode.typeDirectory &&
+	    !getDirectory(inode).isEmpty())
+	    return false;
+
+	directory.remove(last);
+	rememberName(path, -1);
+
+	// an open file keeps its inode and sectors until it is last closed
+	if (inode.openCount > 0)
+	    inode.removed = true;
+	else
+	    freeInode(inode);
+
+	return true;
+    }
+
+    private Inode allocateInode(int type) {
+	for (int i=rootInumber+1; i<numInodes; i++) {
+	    if (inodes[i].type == Inode.typeFree) {
+		Inode inode = inodes[i];
+		inode.type = type;
+		inode.length = 0;
+		inode.numExtents = 0;
+		inode.openCount = 0;
+		inode.removed = false;
+
+		dirtyInodeSectors.add(i / inodesPerSector);
+		logMetadata();
+		return inode;
+	    }
+	}
+
+	return null;
+    }
+
+    private void freeInode(Inode inode) {
+	truncate(inode);
+	directories.remove(inode.inumber);
+
+	inode.type = Inode.typeFree;
+	inode.removed = false;
+
+	dirtyInodeSectors.add(inode.inumber / inodesPerSector);
+	logMetadata();
+    }
+
+    /**
+     * Free all of a file's sectors and set its length to 0.
+     */
+    private void truncate(Inode inode) {
+	while (inode.numPendingIO > 0)
+	    ioDone.sleep();
+
+	for (int i=0; i<inode.numExtents; i++) {
+	    freeMap.clear(inode.extentStart[i],
+			  inode.extentStart[i] + inode.extentLength[i]);
+	    markBitmap(inode.extentStart[i],
+		       inode.extentStart[i] + inode.extentLength[i]);
+	    journal.freed(inode.extentStart[i],
+			  inode.extentStart[i] + inode.extentLength[i]);
+	    inode.extentStart[i] = inode.extentLength[i] = 0;
+	}
+
+	inode.numExtents = 0;
+	inode.length = 0;
+
+	dirtyInodeSectors.add(inode.inumber / inodesPerSector);
+	logMetadata();
+    }
+
+    /**
+     * Allocate sectors to a file until it has at least <tt>count</tt>. A
+     * file grows by extending its last extent when the following sector is
+     * free, and otherwise by starting a new extent at the first free sector
+     * after it.
+     *
+     * @return	<tt>true</tt> if the file now has <tt>count</tt> sectors.
+     */
+    private boolean allocateSectors(Inode inode, int count) {
+	int have = inode.numSectors();
+	boolean result = true;
+
+	while (have < count) {
+	    int last = inode.numExtents-1;
+	    int next = (last == -1) ? dataStart
+		: inode.extentStart[last] + inode.extentLength[last];
+
+	    if (last != -1 && next < numSectors && isFree(next)) {
+		inode.extentLength[last]++;
+	    }
+	    else {
+		int sector = nextFreeSector(next);
+		if (sector >= numSectors)
+		    sector = nextFreeSector(dataStart);
+
+		if (sector >= numSectors || inode.numExtents == Inode.maxExtents) {
+		    result = false;
+		    break;
+		}
+
+		next = sector;
+		inode.extentStart[inode.numExtents] = sector;
+		inode.extentLength[inode.numExtents] = 1;
+		inode.numExtents++;
+	    }
+
+	    freeMap.set(next);
+	    markBitmap(next, next+1);
+	    have++;
+	}
+
+	dirtyInodeSectors.add(inode.inumber / inodesPerSector);
+	logMetadata();
+
+	return result;
+    }
+
+    private boolean isFree(int sector) {
+	return !freeMap.get(sector) && journal.mayReuse(sector);
+    }
+
+    private int nextFreeSector(int sector) {
+	sector = freeMap.nextClearBit(sector);
+	while (sector < numSectors && !journal.mayReuse(sector))
+	    sector = freeMap.nextClearBit(sector+1);
+
+	return sector;
+    }
+
+    private void markBitmap(int fromSector, int toSector) {
+	for (int i=fromSector; i<toSector; i+=bitsPerSector)
+	    dirtyBitmapSectors.add(i / bitsPerSector);
+
+	dirtyBitmapSectors.add((toSector-1) / bitsPerSector);
+    }
+
+    /**
+     * Log the bitmap and inode table sectors that have changed.
+     */
+    private void logMetadata() {
+	byte[] data = new byte[Disk.sectorSize];
+
+	for (int i : dirtyBitmapSectors) {
+	    java.util.Arrays.fill(data, (byte) 0);
+	    for (int j=0; j<bitsPerSector; j++) {
+		if (freeMap.get(i*bitsPerSector + j))
+		    data[j/8] |= (byte) (1 << (j%8));
+	    }
+	    journal.log(bitmapStart+i, data, 0);
+	}
+
+	for (int i : dirtyInodeSectors) {
+	    for (int j=0; j<inodesPerSector; j++)
+		inodes[i*inodesPerSector+j].store(data, j*Inode.size);
+	    journal.log(inodeStart()+i, data, 0);
+	}
+
+	dirtyBitmapSectors.clear();
+	dirtyInodeSectors.clear();
+    }
+
+    /**
+     * Read from a file.
+     *
+     * @param	inode	the file's inode.
+     * @param	pos	the offset in the file of the first byte to read.
+     * @param	buf	the buffer to read into.
+     * @param	offset	the offset in the buffer of the first byte to store.
+     * @param	length	the number of bytes to read.
+     * @return	the number of bytes read.
+     */
+    int readFile(Inode inode, int pos, byte[] buf, int offset, int length) {
+	return readFile(inode, pos, buf, offset, length, false);
+    }
+
+    /**
+     * Read from a file, optionally releasing the file system lock while the
+     * disk transfers the data, so that other threads' requests can be
+     * queued and scheduled alongside it.
+     */
+    private int readFile(Inode inode, int pos, byte[] buf, int offset,
+			 int length, boolean releaseLock) {
+	if (pos >= inode.length || length == 0)
+	    return 0;
+
+	length = Math.min(length, inode.length-pos);
+
+	int firstBlock = pos / Disk.sectorSize;
+	int[] sectors = new int[(pos+length-1) / Disk.sectorSize
+				- firstBlock + 1];
+	for (int i=0; i<sectors.length; i++)
+	    sectors[i] = inode.sectorOf(firstBlock+i);
+
+	byte[] data = new byte[sectors.length*Disk.sectorSize];
+
+	readSectors(inode, sectors, data, 0, releaseLock);
+
+	System.arraycopy(data, pos % Disk.sectorSize, buf, offset, length);
+
+	return length;
+    }
+
+    /**
+     * Write to a file, allocating sectors as needed. The write is cut short
+     * if the file cannot grow any further.
+     *
+     * @param	inode	the file's inode.
+     * @param	pos	the offset in the file of the first byte to write.
+     * @param	buf	the buffer to write from.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     * @param	length	the number of bytes to write.
+     * @return	the number of bytes written.
+     */
+    int writeFile(Inode inode, int pos, byte[] buf, int offset, int length) {
+	return writeFile(inode, pos, buf, offset, length, false);
+    }
+
+    /**
+     * Write to a file, optionally releasing the file system lock while the
+     * disk transfers the data.
+     */
+    private int writeFile(Inode inode, int pos, byte[] buf, int offset,
+			  int length, boolean releaseLock) {
+	int oldSectors = inode.numSectors();
+	if (!allocateSectors(inode, (pos+length + Disk.sectorSize-1)
+			     / Disk.sectorSize)) {
+	    length = Math.max(0, inode.numSectors()*Disk.sectorSize - pos);
+	}
+
+	if (length == 0)
+	    return 0;
+
+	// sectors newly allocated before the write would hold stale data
+	byte[] zero = new byte[Disk.sectorSize];
+	for (int i=oldSectors; i<pos/Disk.sectorSize; i++)
+	    disk.writeSector(inode.sectorOf(i), zero, 0);
+
+	int firstBlock = pos / Disk.sectorSize;
+	int lastBlock = (pos+length-1) / Disk.sectorSize;
+
+	int[] sectors = new int[lastBlock - firstBlock + 1];
+	for (int i=0; i<sectors.length; i++)
+	    sectors[i] = inode.sectorOf(firstBlock+i);
+
+	byte[] data = new byte[sectors.length*Disk.sectorSize];
+
+	// partly overwritten sectors that hold data must be read first
+	if (pos % Disk.sectorSize != 0 &&
+	    firstBlock*Disk.sectorSize < inode.length)
+	    readSectors(inode, new int[] { sectors[0] }, data, 0, false);
+
+	if ((pos+length) % Disk.sectorSize != 0 &&
+	    lastBlock*Disk.sectorSize < inode.length &&
+	    (lastBlock != firstBlock || pos % Disk.sectorSize == 0))
+	    readSectors(inode, new int[] { sectors[sectors.length-1] }, data,
+			(sectors.length-1)*Disk.sectorSize, false);
+
+	System.arraycopy(buf, offset, data, pos % Disk.sectorSize, length);
+
+	writeSectors(inode, sectors, data, releaseLock);
+
+	if (pos+length > inode.length) {
+	    inode.length = pos+length;
+	    dirtyInodeSectors.add(inode.inumber / inodesPerSector);
+	    logMetadata();
+	}
+
+	return length;
+    }
+
+    /**
+     * Read sectors of a file. A directory's sectors are metadata, so their
+     * latest contents may be in the journal rather than on disk.
+     */
+    private void readSectors(Inode inode, int[] sectors, byte[] data,
+			     int offset, boolean releaseLock) {
+	if (inode.type == Inode.typeDirectory) {
+	    for (int i=0; i<sectors.length; i++) {
+		byte[] image = journal.find(sectors[i]);
+		if (image != null)
+		    System.arraycopy(image, 0, data, offset+i*Disk.sectorSize,
+				     Disk.sectorSize);
+		else
+		    disk.readSector(sectors[i], data, offset+i*Disk.sectorSize);
+	    }
+	    return;
+	}
+
+	startIO(inode, releaseLock);
+	disk.readSectors(sectors, data, offset);
+	finishIO(inode, releaseLock);
+    }
+
+    /**
+     * Write sectors of a file. The sectors of a directory are logged, and
+     * those of a regular file are written in place.
+     */
+    private void writeSectors(Inode inode, int[] sectors, byte[] data,
+			      boolean releaseLock) {
+	if (inode.type == Inode.typeDirectory) {
+	    for (int i=0; i<sectors.length; i++)
+		journal.log(sectors[i], data, i*Disk.sectorSize);
+	    return;
+	}
+
+	startIO(inode, releaseLock);
+	disk.writeSectors(sectors, data, 0);
+	finishIO(inode, releaseLock);
+    }
+
+    private void startIO(Inode inode, boolean releaseLock) {
+	if (releaseLock) {
+	    inode.numPendingIO++;
+	    lock.release();
+	}
+    }
+
+    private void finishIO(Inode inode, boolean releaseLock) {
+	if (releaseLock) {
+	    lock.acquire();
+	    if (--inode.numPendingIO == 0)
+		ioDone.wakeAll();
+	}
+    }
+
+    /**
+     * Write every logged metadata update to its home location and empty the
+     * journal, so the next mount has nothing to replay.
+     */
+    public void flush() {
+	lock.acquire();
+
+	if (mounted)
+	    journal.checkpoint();
+
+	lock.release();
+    }
+
+    /**
+     * Print the journal and disk scheduler statistics.
+     */
+    public void print() {
+	if (mounted)
+	    System.out.println(journal.getStatistics());
+
+	System.out.println("Name cache: hits " + numNameHits
+			   + ", negative hits " + numNegativeHits
+			   + ", misses " + numNameMisses);
+
+	disk.print();
+    }
+
+    private int inodeStart() {
+	return bitmapStart + bitmapSectors;
+    }
+
+    private int journalStart() {
+	return inodeStart() + inodeSectors;
+    }
+
+    private class DiskOpenFile extends OpenFileWithPosition {
+	DiskOpenFile(String name, Inode inode) {
+	    super(DiskFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = readFile(inode, pos, buf, offset, length, true);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+	    journal.begin();
+	    int amount = writeFile(inode, pos, buf, offset, length, true);
+	    journal.commit();
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    return (inode == null) ? -1 : inode.length;
+	}
+
+	public void close() {
+	    if (inode == null)
+		return;
+
+	    lock.acquire();
+	    journal.begin();
+
+	    inode.openCount--;
+	    if (inode.openCount == 0 && inode.removed)
+		freeInode(inode);
+
+	    journal.commit();
+	    lock.release();
+
+	    inode = null;
+	}
+
+	private Inode inode;
+    }
+
+    private SynchDisk disk;
+    private Lock lock;
+    private Condition2 ioDone;
+    private boolean mounted = false;
+
+    private int numSectors, bitmapSectors, inodeSectors, journalSectors;
+    private int dataStart;
+    private Journal journal;
+
+    /** The loaded directories, by inode number. */
+    private HashMap<Integer,Directory> directories =
+	new HashMap<Integer,Directory>();
+    private int numNames;
+    /** Inode numbers by path, -1 if the path does not exist, in LRU order. */
+    private LinkedHashMap<String,Integer> names =
+	new LinkedHashMap<String,Integer>(16, 0.75f, true);
+    private int numNameHits = 0, numNegativeHits = 0, numNameMisses = 0;
+    private BitSet freeMap = new BitSet();
+    private Inode[] inodes;
+
+    private TreeSet<Integer> dirtyBitmapSectors = new TreeSet<Integer>();
+    private TreeSet<Integer> dirtyInodeSectors = new TreeSet<Integer>();
+
+    private static final int magic = 0x4E414348;
+    private static final int superblockSector = 0;
+    private static final int bitmapStart = 1;
+    private static final int bitsPerSector = Disk.sectorSize*8;
+    private static final int numInodes = 128;
+    private static final int inodesPerSector = Disk.sectorSize/Inode.size;
+    private static final int rootInumber = 1;
+}
@@ -0,0 +1,30 @@
+package nachos.filesys;
+
+import nachos.threads.*;
+
+/**
+ * A request for one sector, waiting in <tt>SynchDisk</tt>'s queue to be
+ * sent to the disk.
+ */
+public class DiskRequest {
+    DiskRequest(int sector, boolean write, byte[] data, int offset,
+		long arrivalTime, Semaphore done) {
+	this.sector = sector;
+	this.write = write;
+	this.data = data;
+	this.offset = offset;
+	this.arrivalTime = arrivalTime;
+	this.done = done;
+    }
+
+    /** The sector number. */
+    public final int sector;
+    /** <tt>true</tt> if this is a write, <tt>false</tt> if it is a read. */
+    public final boolean write;
+    /** The time at which the request was queued. */
+    public final long arrivalTime;
+
+    final byte[] data;
+    final int offset;
+    final Semaphore done;
+}
@@ -0,0 +1,31 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * Chooses the order in which queued requests are sent to the disk.
+ * <tt>SynchDisk</tt> creates the scheduler named by the
+ * <tt>SynchDisk.scheduler</tt> configuration key, and calls it with
+ * interrupts disabled each time the disk becomes idle.
+ */
+public interface DiskScheduler {
+    /**
+     * Choose the next request to send to the disk.
+     *
+     * @param	queue		the waiting requests, oldest first. The queue is
+     *				never empty.
+     * @param	headSector	the sector following the last one transferred,
+     *				which is where the head is.
+     * @return	the index in <tt>queue</tt> of the request to serve.
+     */
+    public int chooseRequest(List<DiskRequest> queue, int headSector);
+
+    /**
+     * Return the scheduler's own statistics, which <tt>SynchDisk</tt> prints
+     * with its request counts and latencies.
+     *
+     * @return	the statistics, as a comma-separated list of names and
+     *		counts, or an empty string if the scheduler keeps none.
+     */
+    public String getStatistics();
+}
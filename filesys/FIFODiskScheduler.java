@@ -0,0 +1,22 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * Serves disk requests in the order they arrive.
+ */
+public class FIFODiskScheduler implements DiskScheduler {
+    /**
+     * Allocate a new FIFO disk scheduler.
+     */
+    public FIFODiskScheduler() {
+    }
+
+    public int chooseRequest(List<DiskRequest> queue, int headSector) {
+	return 0;
+    }
+
+    public String getStatistics() {
+	return "";
+    }
+}
@@ -0,0 +1,116 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+
+/**
+ * The in-memory copy of an inode, which describes one file or directory.
+ * The blocks of a file are stored in up to <tt>maxExtents</tt> extents,
+ * each a run of consecutive sectors, so a file laid out contiguously needs
+ * only one.
+ *
+ * <p>
+ * On disk an inode occupies <tt>size</tt> bytes of the inode table: its
+ * type, its length in bytes, the number of extents in use, and the first
+ * sector and length of each extent.
+ */
+class Inode {
+    /**
+     * Allocate an in-memory inode.
+     *
+     * @param	inumber	the inode number.
+     */
+    Inode(int inumber) {
+	this.inumber = inumber;
+    }
+
+    /**
+     * Load this inode from its place in an inode table sector.
+     *
+     * @param	data	the sector holding the inode.
+     * @param	offset	the offset of the inode in the sector.
+     */
+    void load(byte[] data, int offset) {
+	type = Lib.bytesToInt(data, offset);
+	length = Lib.bytesToInt(data, offset+4);
+	numExtents = Lib.bytesToInt(data, offset+8);
+
+	for (int i=0; i<maxExtents; i++) {
+	    extentStart[i] = Lib.bytesToInt(data, offset+12+i*8);
+	    extentLength[i] = Lib.bytesToInt(data, offset+16+i*8);
+	}
+    }
+
+    /**
+     * Store this inode in its place in an inode table sector.
+     *
+     * @param	data	the sector holding the inode.
+     * @param	offset	the offset of the inode in the sector.
+     */
+    void store(byte[] data, int offset) {
+	Lib.bytesFromInt(data, offset, type);
+	Lib.bytesFromInt(data, offset+4, length);
+	Lib.bytesFromInt(data, offset+8, numExtents);
+
+	for (int i=0; i<maxExtents; i++) {
+	    Lib.bytesFromInt(data, offset+12+i*8, extentStart[i]);
+	    Lib.bytesFromInt(data, offset+16+i*8, extentLength[i]);
+	}
+    }
+
+    /**
+     * Return the number of sectors allocated to this file.
+     *
+     * @return	the number of sectors in all extents.
+     */
+    int numSectors() {
+	int count = 0;
+	for (int i=0; i<numExtents; i++)
+	    count += extentLength[i];
+
+	return count;
+    }
+
+    /**
+     * Return the disk sector holding a block of this file.
+     *
+     * @param	block	the block number within the file.
+     * @return	the sector number, or -1 if the block is not allocated.
+     */
+    int sectorOf(int block) {
+	for (int i=0; i<numExtents; i++) {
+	    if (block < extentLength[i])
+		return extentStart[i] + block;
+
+	    block -= extentLength[i];
+	}
+
+	return -1;
+    }
+
+    /** The inode number. */
+    int inumber;
+
+    /** <tt>typeFree</tt>, <tt>typeFile</tt>, or <tt>typeDirectory</tt>. */
+    int type = typeFree;
+    /** The length of the file, in bytes. */
+    int length = 0;
+    int numExtents = 0;
+    int[] extentStart = new int[maxExtents];
+    int[] extentLength = new int[maxExtents];
+
+    /** The number of open files using this inode. */
+    int openCount = 0;
+    /** The number of transfers in progress without the file system lock. */
+    int numPendingIO = 0;
+    /** <tt>true</tt> if the file was removed while open. */
+    boolean removed = false;
+
+    static final int typeFree = 0;
+    static final int typeFile = 1;
+    static final int typeDirectory = 2;
+
+    /** The number of extents an inode can hold. */
+    static final int maxExtents = 6;
+    /** The size of an inode on disk, in bytes. */
+    static final int size = 64;
+}
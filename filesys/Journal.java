@@ -0,0 +1,385 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of metadata updates. Instead of writing a changed
+ * bitmap, inode table, or directory sector in place, the file system logs
+ * a copy of the sector's new contents, and at the end of each operation
+ * commits the log. The sectors are written to their home locations later,
+ * at a checkpoint, when the log is full or the file system is flushed, so a
+ * sector changed by many operations is written in place once.
+ *
+ * <p>
+ * Commits are grouped. While one thread is writing a transaction to the
+ * log, with the file system lock released, the updates of other threads
+ * collect in the next transaction, and the next thread to commit writes
+ * them all with a single sequential write. An operation that starts when
+ * the running transaction is already half full first waits for it to be
+ * committed, so a group never outgrows the log. If the updates logged while
+ * one commit is in flight still fill the running transaction, it is
+ * committed early, and the rest of the updates go in the next one.
+ *
+ * <p>
+ * On disk the log starts with a header sector holding the sequence number
+ * of the first transaction in the log. Each transaction is a descriptor
+ * sector listing the home sectors it updates, the new contents of those
+ * sectors, and a commit sector with a checksum of the rest. After a crash,
+ * <tt>replay()</tt> applies every complete transaction in sequence and
+ * stops at the first one that is missing or torn.
+ */
+class Journal {
+    /**
+     * Allocate a new journal.
+     *
+     * @param	disk		the disk holding the journal.
+     * @param	lock		the file system lock, which is held whenever
+     *				the journal is used.
+     * @param	start		the first sector of the journal.
+     * @param	numSectors	the number of sectors in the journal.
+     */
+    Journal(SynchDisk disk, Lock lock, int start, int numSectors) {
+	this.disk = disk;
+	this.lock = lock;
+	this.start = start;
+	this.numSectors = numSectors;
+
+	maxUpdates = Math.min(numSectors-3,
+			      (Disk.sectorSize-12) / 4);
+
+	commitDone = new Condition2(lock);
+    }
+
+    /**
+     * Write an empty log, starting with transaction 1.
+     */
+    void format() {
+	writeHeader(1);
+	nextSequence = 1;
+	committedSequence = 0;
+	position = start+1;
+    }
+
+    /**
+     * Apply the complete transactions in the log to their home locations,
+     * then empty the log.
+     */
+    void replay() {
+	long startTime = Machine.timer().getTime();
+
+	byte[] data = new byte[Disk.sectorSize];
+	disk.readSector(start, data, 0);
+
+	int sequence = (Lib.bytesToInt(data, 0) == headerMagic)
+	    ? Lib.bytesToInt(data, 4) : 1;
+	int next = start+1;
+
+	while (next+2 <= start+numSectors) {
+	    byte[] descriptor = new byte[Disk.sectorSize];
+	    disk.readSector(next, descriptor, 0);
+
+	    int count = Lib.bytesToInt(descriptor, 8);
+	    if (Lib.bytesToInt(descriptor, 0) != descriptorMagic ||
+		Lib.bytesToInt(descriptor, 4) != sequence ||
+		count < 0 || count > maxUpdates ||
+		next+count+2 > start+numSectors)
+		break;
+
+	    byte[] contents = new byte[(count+1)*Disk.sectorSize];
+	    int[] sectors = new int[count+1];
+	    for (int i=0; i<=count; i++)
+		sectors[i] = next+1+i;
+	    disk.readSectors(sectors, contents, 0);
+
+	    int commit = count*Disk.sectorSize;
+	    if (Lib.bytesToInt(contents, commit) != commitMagic ||
+		Lib.bytesToInt(contents, commit+4) != sequence ||
+		Lib.bytesToInt(contents, commit+8) != checksum(descriptor,
+							       contents,
+							       count))
+		break;
+
+	    int[] home = new int[count];
+	    for (int i=0; i<count; i++)
+		home[i] = Lib.bytesToInt(descriptor, 12+i*4);
+	    disk.writeSectors(home, contents, 0);
+
+	    numReplayed++;
+	    sequence++;
+	    next += count+2;
+	}
+
+	writeHeader(sequence);
+	nextSequence = sequence;
+	committedSequence = sequence-1;
+	position = start+1;
+
+	replayTicks = Machine.timer().getTime() - startTime;
+    }
+
+    /**
+     * Make room in the running transaction for an operation that is about
+     * to log its updates. If the transaction is more than half full, wait
+     * until it has been committed.
+     */
+    void begin() {
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	while (running.size() > maxUpdates/2) {
+	    if (committing == null)
+		writeTransaction();
+	    else
+		commitDone.sleep();
+	}
+    }
+
+    /**
+     * Log the new contents of a sector as part of the running transaction.
+     * If the transaction is full, it is committed first.
+     *
+     * @param	sector	the home sector.
+     * @param	data	the buffer holding the new contents.
+     * @param	offset	the offset of the contents in the buffer.
+     */
+    void log(int sector, byte[] data, int offset) {
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	while (running.size() >= maxUpdates && !running.containsKey(sector)) {
+	    if (committing == null) {
+		writeTransaction();
+		numEarlyCommits++;
+	    }
+	    else {
+		commitDone.sleep();
+	    }
+	}
+
+	byte[] image = new byte[Disk.sectorSize];
+	System.arraycopy(data, offset, image, 0, Disk.sectorSize);
+	running.put(sector, image);
+    }
+
+    /**
+     * Return the latest logged contents of a sector, including updates that
+     * are not yet committed.
+     *
+     * @param	sector	the home sector.
+     * @return	the contents, or <tt>null</tt> if the sector has not been
+     *		logged since the last checkpoint.
+     */
+    byte[] find(int sector) {
+	byte[] image = running.get(sector);
+	if (image == null && committing != null)
+	    image = committing.get(sector);
+	if (image == null)
+	    image = checkpointPending.get(sector);
+
+	return image;
+    }
+
+    /**
+     * Note that a run of sectors was freed by the running transaction.
+     *
+     * @param	fromSector	the first sector freed.
+     * @param	toSector	the sector following the last one freed.
+     */
+    void freed(int fromSector, int toSector) {
+	runningFreed.set(fromSector, toSector);
+    }
+
+    /**
+     * Test whether a free sector may be allocated to hold file data, which
+     * is written in place rather than logged. A sector freed by a
+     * transaction that is not yet committed may not be, since after a crash
+     * it would still belong to its old file. Nor may a sector logged since
+     * the last checkpoint, since a replay would overwrite the data with the
+     * logged contents.
+     *
+     * @param	sector	the sector number.
+     * @return	<tt>true</tt> if the sector may be reused.
+     */
+    boolean mayReuse(int sector) {
+	return !runningFreed.get(sector) && !committingFreed.get(sector)
+	    && find(sector) == null;
+    }
+
+    /**
+     * Wait until every update logged so far is committed to the log,
+     * writing the running transaction if no other thread is already writing
+     * one.
+     */
+    void commit() {
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	// the running transaction, or the one being written, holds our updates
+	int sequence = running.isEmpty() ? nextSequence-1 : nextSequence;
+	if (committedSequence < sequence)
+	    numCommittedOps++;
+
+	while (committedSequence < sequence) {
+	    if (committing == null)
+		writeTransaction();
+	    else
+		commitDone.sleep();
+	}
+    }
+
+    /**
+     * Commit the log, then write every logged sector to its home location
+     * and empty the log.
+     */
+    void checkpoint() {
+	commit();
+
+	while (committing != null)
+	    commitDone.sleep();
+
+	writeCheckpoint();
+    }
+
+    private void writeCheckpoint() {
+	if (checkpointPending.isEmpty())
+	    return;
+
+	int[] sectors = new int[checkpointPending.size()];
+	byte[] data = new byte[sectors.length*Disk.sectorSize];
+
+	int i = 0;
+	for (Map.Entry<Integer, byte[]> entry : checkpointPending.entrySet()) {
+	    sectors[i] = entry.getKey();
+	    System.arraycopy(entry.getValue(), 0, data, i*Disk.sectorSize,
+			     Disk.sectorSize);
+	    i++;
+	}
+
+	disk.writeSectors(sectors, data, 0);
+	writeHeader(nextSequence);
+
+	checkpointPending.clear();
+	position = start+1;
+
+	numCheckpoints++;
+	numCheckpointed += sectors.length;
+    }
+
+    /**
+     * Return a line of journal statistics.
+     *
+     * @return	the statistics.
+     */
+    String getStatistics() {
+	return "Journal: commits " + numCommits
+	    + " (" + numCommittedOps + " operations, "
+	    + numEarlyCommits + " early, "
+	    + numLogged + " sectors logged), checkpoints " + numCheckpoints
+	    + " (" + numCheckpointed + " sectors), replayed " + numReplayed
+	    + " transactions in " + replayTicks + " ticks";
+    }
+
+    private void writeTransaction() {
+	TreeMap<Integer, byte[]> transaction = running;
+	int sequence = nextSequence;
+	int count = transaction.size();
+
+	if (position + count+2 > start+numSectors)
+	    writeCheckpoint();
+
+	running = new TreeMap<Integer, byte[]>();
+	nextSequence++;
+	committing = transaction;
+	committingFreed = runningFreed;
+	runningFreed = new BitSet();
+
+	byte[] descriptor = new byte[Disk.sectorSize];
+	byte[] contents = new byte[(count+1)*Disk.sectorSize];
+
+	Lib.bytesFromInt(descriptor, 0, descriptorMagic);
+	Lib.bytesFromInt(descriptor, 4, sequence);
+	Lib.bytesFromInt(descriptor, 8, count);
+
+	int i = 0;
+	for (Map.Entry<Integer, byte[]> entry : transaction.entrySet()) {
+	    Lib.bytesFromInt(descriptor, 12+i*4, entry.getKey());
+	    System.arraycopy(entry.getValue(), 0, contents, i*Disk.sectorSize,
+			     Disk.sectorSize);
+	    i++;
+	}
+
+	int commit = count*Disk.sectorSize;
+	Lib.bytesFromInt(contents, commit, commitMagic);
+	Lib.bytesFromInt(contents, commit+4, sequence);
+	Lib.bytesFromInt(contents, commit+8,
+			 checksum(descriptor, contents, count));
+
+	int[] sectors = new int[count+2];
+	for (i=0; i<sectors.length; i++)
+	    sectors[i] = position+i;
+
+	byte[] data = new byte[sectors.length*Disk.sectorSize];
+	System.arraycopy(descriptor, 0, data, 0, Disk.sectorSize);
+	System.arraycopy(contents, 0, data, Disk.sectorSize, contents.length);
+
+	position += sectors.length;
+
+	// let other threads log updates to the next transaction meanwhile
+	lock.release();
+	disk.writeSectors(sectors, data, 0);
+	lock.acquire();
+
+	checkpointPending.putAll(transaction);
+	committing = null;
+	committingFreed = new BitSet();
+	committedSequence = sequence;
+
+	numCommits++;
+	numLogged += count;
+	commitDone.wakeAll();
+    }
+
+    private void writeHeader(int sequence) {
+	byte[] data = new byte[Disk.sectorSize];
+	Lib.bytesFromInt(data, 0, headerMagic);
+	Lib.bytesFromInt(data, 4, sequence);
+	disk.writeSector(start, data, 0);
+    }
+
+    private static int checksum(byte[] descriptor, byte[] contents,
+				int count) {
+	CRC32 crc = new CRC32();
+	crc.update(descriptor, 0, Disk.sectorSize);
+	crc.update(contents, 0, count*Disk.sectorSize);
+	return (int) crc.getValue();
+    }
+
+    private SynchDisk disk;
+    private Lock lock;
+    private Condition2 commitDone;
+    private int start, numSectors;
+    private int maxUpdates;
+
+    /** The next free sector in the log. */
+    private int position;
+    private int nextSequence, committedSequence;
+
+    private TreeMap<Integer, byte[]> running = new TreeMap<Integer, byte[]>();
+    private TreeMap<Integer, byte[]> committing = null;
+    private TreeMap<Integer, byte[]> checkpointPending =
+	new TreeMap<Integer, byte[]>();
+    private BitSet runningFreed = new BitSet(), committingFreed = new BitSet();
+
+    private int numCommits = 0, numCommittedOps = 0, numLogged = 0;
+    private int numEarlyCommits = 0;
+    private int numCheckpoints = 0, numCheckpointed = 0;
+    private int numReplayed = 0;
+    private long replayTicks = 0;
+
+    private static final int headerMagic = 0x4A524E4C;
+    private static final int descriptorMagic = 0x4A445343;
+    private static final int commitMagic = 0x4A434D54;
+}
@@ -0,0 +1,53 @@
+package nachos.filesys;
+
+import java.util.List;
+
+/**
+ * The elevator algorithm. The head sweeps in one direction, serving the
+ * nearest request ahead of it, and turns around when there are no requests
+ * left in that direction (the LOOK variant of SCAN, which does not travel
+ * to the edge of the disk first).
+ */
+public class LookDiskScheduler implements DiskScheduler {
+    /**
+     * Allocate a new elevator disk scheduler.
+     */
+    public LookDiskScheduler() {
+    }
+
+    public int chooseRequest(List<DiskRequest> queue, int headSector) {
+	int index = nearest(queue, headSector, up);
+	if (index == -1) {
+	    up = !up;
+	    numReversals++;
+	    index = nearest(queue, headSector, up);
+	}
+
+	return index;
+    }
+
+    private static int nearest(List<DiskRequest> queue, int headSector,
+			       boolean up) {
+	int best = -1, bestDistance = 0;
+
+	for (int i=0; i<queue.size(); i++) {
+	    int distance = queue.get(i).sector - headSector;
+	    if (!up)
+		distance = -distance - 1;
+
+	    if (distance >= 0 && (best == -1 || distance < bestDistance)) {
+		best = i;
+		bestDistance = distance;
+	    }
+	}
+
+	return best;
+    }
+
+    public String getStatistics() {
+	return "reversals " + numReversals;
+    }
+
+    private boolean up = true;
+    private int numReversals = 0;
+}
@@ -0,0 +1,256 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Provides a synchronous interface to the simulated disk. Each request
+ * blocks the calling thread until the disk has finished it.
+ *
+ * <p>
+ * Requests from all threads wait in one queue while the disk is busy, and
+ * whenever it becomes idle the <tt>DiskScheduler</tt> named by
+ * <tt>SynchDisk.scheduler</tt> chooses which to serve next. Unless
+ * <tt>SynchDisk.mergeRequests</tt> is false, waiting requests for the
+ * sectors on either side of the chosen one, in the same direction, are
+ * merged with it into a single disk request, so a run of sectors pays for
+ * only one seek and rotational delay.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the underlying disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	String schedulerName =
+	    Config.getString("SynchDisk.scheduler",
+			     "nachos.filesys.CLookDiskScheduler");
+	scheduler = (DiskScheduler) Lib.constructObject(schedulerName);
+	mergeRequests = Config.getBoolean("SynchDisk.mergeRequests", true);
+
+	disk.setInterruptHandler(new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    /**
+     * Read a sector, waiting until the disk has finished.
+     *
+     * @param	sector	the sector number.
+     * @param	data	the buffer to read into.
+     * @param	offset	the offset in the buffer of the first byte to read.
+     */
+    public void readSector(int sector, byte[] data, int offset) {
+	transfer(new int[] { sector }, data, offset, false);
+    }
+
+    /**
+     * Write a sector, waiting until the disk has finished.
+     *
+     * @param	sector	the sector number.
+     * @param	data	the buffer to write from.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     */
+    public void writeSector(int sector, byte[] data, int offset) {
+	transfer(new int[] { sector }, data, offset, true);
+    }
+
+    /**
+     * Read several sectors, which need not be consecutive, waiting until the
+     * disk has finished all of them. The requests are queued together, so
+     * the scheduler can order and merge them.
+     *
+     * @param	sectors	the sector numbers.
+     * @param	data	the buffer to read into, which receives the sectors
+     *			one after another.
+     * @param	offset	the offset in the buffer of the first byte to read.
+     */
+    public void readSectors(int[] sectors, byte[] data, int offset) {
+	transfer(sectors, data, offset, false);
+    }
+
+    /**
+     * Write several sectors, which need not be consecutive, waiting until
+     * the disk has finished all of them.
+     *
+     * @param	sectors	the sector numbers.
+     * @param	data	the buffer to write from, which holds the sectors one
+     *			after another.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     */
+    public void writeSectors(int[] sectors, byte[] data, int offset) {
+	transfer(sectors, data, offset, true);
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Print the number of requests and their latencies, from the time each
+     * was queued until the disk finished it.
+     */
+    public void print() {
+	long total = 0;
+	for (int i=0; i<numLatencies; i++)
+	    total += latencies[i];
+
+	long[] sorted = Arrays.copyOf(latencies, numLatencies);
+	Arrays.sort(sorted);
+
+	String name = scheduler.getClass().getName();
+	name = name.substring(name.lastIndexOf('.')+1);
+
+	System.out.print("Disk scheduler: " + name
+			 + ", requests " + numLatencies
+			 + " in " + numTransfers + " transfers");
+	String statistics = scheduler.getStatistics();
+	if (statistics.length() > 0)
+	    System.out.print(", " + statistics);
+	System.out.println(", latency avg "
+			   + (numLatencies == 0 ? 0 : total/numLatencies)
+			   + ", p95 " + percentile(sorted, 95)
+			   + ", p99 " + percentile(sorted, 99)
+			   + ", max " + percentile(sorted, 100) + " ticks");
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+	if (sorted.length == 0)
+	    return 0;
+
+	int index = (sorted.length*percent + 99) / 100 - 1;
+	return sorted[Math.max(0, index)];
+    }
+
+    private void transfer(int[] sectors, byte[] data, int offset,
+			  boolean write) {
+	Semaphore done = new Semaphore(0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
+	for (int i=0; i<sectors.length; i++) {
+	    queue.add(new DiskRequest(sectors[i], write, data,
+				      offset + i*Disk.sectorSize, time, done));
+	}
+
+	if (inProgress.isEmpty())
+	    startRequest();
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<sectors.length; i++)
+	    done.P();
+    }
+
+    /**
+     * Send the next request to the disk, merged with any waiting requests
+     * for adjacent sectors. Called with interrupts disabled.
+     */
+    private void startRequest() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	DiskRequest first =
+	    queue.remove(scheduler.chooseRequest(queue, headSector));
+	inProgress.add(first);
+
+	if (mergeRequests) {
+	    boolean merged = true;
+	    while (merged && inProgress.size() < maxMerge) {
+		merged = false;
+
+		int low = inProgress.getFirst().sector;
+		int high = inProgress.getLast().sector;
+
+		for (int i=0; i<queue.size(); i++) {
+		    DiskRequest request = queue.get(i);
+		    if (request.write != first.write)
+			continue;
+
+		    if (request.sector == high+1 &&
+			high+1 < disk.getNumSectors()) {
+			inProgress.addLast(queue.remove(i));
+			merged = true;
+			break;
+		    }
+		    else if (request.sector == low-1) {
+			inProgress.addFirst(queue.remove(i));
+			merged = true;
+			break;
+		    }
+		}
+	    }
+	}
+
+	int sector = inProgress.getFirst().sector;
+	int count = inProgress.size();
+
+	if (first.write) {
+	    int i = 0;
+	    for (DiskRequest request : inProgress) {
+		System.arraycopy(request.data, request.offset,
+				 buffer, i*Disk.sectorSize, Disk.sectorSize);
+		i++;
+	    }
+
+	    disk.writeRequest(sector, count, buffer, 0);
+	}
+	else {
+	    disk.readRequest(sector, count, buffer, 0);
+	}
+
+	numTransfers++;
+    }
+
+    private void requestDone() {
+	long time = Machine.timer().getTime();
+
+	int i = 0;
+	for (DiskRequest request : inProgress) {
+	    if (!request.write) {
+		System.arraycopy(buffer, i*Disk.sectorSize,
+				 request.data, request.offset, Disk.sectorSize);
+	    }
+	    i++;
+
+	    if (numLatencies == latencies.length)
+		latencies = Arrays.copyOf(latencies, latencies.length*2);
+	    latencies[numLatencies++] = time - request.arrivalTime;
+
+	    request.done.V();
+	}
+
+	headSector = inProgress.getLast().sector + 1;
+	inProgress.clear();
+
+	if (!queue.isEmpty())
+	    startRequest();
+    }
+
+    private Disk disk;
+    private DiskScheduler scheduler;
+    private boolean mergeRequests;
+
+    private ArrayList<DiskRequest> queue = new ArrayList<DiskRequest>();
+    private LinkedList<DiskRequest> inProgress = new LinkedList<DiskRequest>();
+    private int headSector = 0;
+
+    private static final int maxMerge = Disk.sectorsPerTrack;
+    private byte[] buffer = new byte[maxMerge*Disk.sectorSize];
+
+    private int numTransfers = 0;
+    private long[] latencies = new long[256];
+    private int numLatencies = 0;
+}
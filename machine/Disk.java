@@ -0,0 +1,272 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A simulated disk. The disk is divided into tracks, each holding
+ * <tt>sectorsPerTrack</tt> sectors of <tt>sectorSize</tt> bytes, and sectors
+ * are numbered track by track. The contents of the disk are kept in a host
+ * file (<tt>Disk.fileName</tt>, <tt>nachos.disk</tt> by default), which is
+ * mapped into memory, so they persist from one run of Nachos to the next.
+ *
+ * <p>
+ * Only one request, for a sector or a run of consecutive sectors, can be in
+ * progress at a time. A request completes after the time it takes the head
+ * to seek to the first sector's track, for that sector to rotate under the
+ * head, and for the sectors to pass under the head, and the interrupt
+ * handler is then called. A seek costs a settling time plus time
+ * proportional to the distance, so a seek across the whole disk takes
+ * about <tt>Stats.SeekTime</tt>; the disk turns once every
+ * <tt>Stats.RotationTime</tt> ticks.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk. <tt>nachos.conf</tt> specifies the number of
+     * tracks (<tt>Disk.numTracks</tt>).
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     * 				machine.
+     */
+    public Disk(Privilege privilege) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 64);
+	Lib.assertTrue(numTracks > 0);
+
+	final File file = new File(Config.getString("Disk.fileName",
+						    "nachos.disk"));
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { mapFile(file); }
+	    });
+
+	Lib.assertTrue(contents != null, "unable to map disk file");
+
+	interrupt = new Runnable() {
+		public void run() { requestDone(); }
+	    };
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { contents.force(); }
+	    });
+    }
+
+    private void mapFile(File file) {
+	try {
+	    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	    long size = (long) getNumSectors() * sectorSize;
+	    if (raf.length() < size)
+		raf.setLength(size);
+
+	    contents = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					    size);
+	    raf.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    /**
+     * Set this disk's interrupt handler. The handler is called every time a
+     * request started with <tt>readRequest()</tt> or <tt>writeRequest()</tt>
+     * completes.
+     *
+     * @param	interruptHandler	the callback to call when a request
+     *					completes.
+     */
+    public void setInterruptHandler(Runnable interruptHandler) {
+	this.interruptHandler = interruptHandler;
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numTracks * sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of tracks on this disk.
+     *
+     * @return	the number of tracks.
+     */
+    public int getNumTracks() {
+	return numTracks;
+    }
+
+    /**
+     * Return the track the head is on, or will be on when the request in
+     * progress completes.
+     *
+     * @return	the track number.
+     */
+    public int getHeadTrack() {
+	return headTrack;
+    }
+
+    /**
+     * Start reading a sector. <tt>data</tt> holds the sector's contents when
+     * the interrupt handler is called. No other request may be in progress.
+     *
+     * @param	sector	the sector number.
+     * @param	data	the buffer to read into.
+     * @param	offset	the offset in the buffer of the first byte to read.
+     */
+    public void readRequest(int sector, byte[] data, int offset) {
+	readRequest(sector, 1, data, offset);
+    }
+
+    /**
+     * Start reading a run of consecutive sectors in a single request, which
+     * pays for one seek and rotational delay.
+     *
+     * @param	sector	the first sector number.
+     * @param	count	the number of sectors to read.
+     * @param	data	the buffer to read into.
+     * @param	offset	the offset in the buffer of the first byte to read.
+     */
+    public void readRequest(int sector, int count, byte[] data, int offset) {
+	startRequest(sector, count, data, offset, false);
+    }
+
+    /**
+     * Start writing a sector. The contents of <tt>data</tt> are copied
+     * immediately, so the buffer may be reused at once. No other request may
+     * be in progress.
+     *
+     * @param	sector	the sector number.
+     * @param	data	the buffer to write from.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     */
+    public void writeRequest(int sector, byte[] data, int offset) {
+	writeRequest(sector, 1, data, offset);
+    }
+
+    /**
+     * Start writing a run of consecutive sectors in a single request.
+     *
+     * @param	sector	the first sector number.
+     * @param	count	the number of sectors to write.
+     * @param	data	the buffer to write from.
+     * @param	offset	the offset in the buffer of the first byte to write.
+     */
+    public void writeRequest(int sector, int count, byte[] data, int offset) {
+	startRequest(sector, count, data, offset, true);
+    }
+
+    /**
+     * Return the number of ticks a request for a sector would take if it
+     * were started now.
+     *
+     * @param	sector	the sector number.
+     * @return	the request's latency.
+     */
+    public int latency(int sector) {
+	return latency(sector, 1);
+    }
+
+    /**
+     * Return the number of ticks a request for a run of sectors would take
+     * if it were started now.
+     *
+     * @param	sector	the first sector number.
+     * @param	count	the number of sectors.
+     * @return	the request's latency.
+     */
+    public int latency(int sector, int count) {
+	Lib.assertTrue(sector >= 0 && count > 0 &&
+		       sector+count <= getNumSectors());
+
+	int track = sector / sectorsPerTrack;
+	int distance = Math.abs(track - headTrack);
+
+	int seek = 0;
+	if (distance > 0)
+	    seek = Stats.SeekTime/5 + Stats.SeekTime*distance/numTracks;
+
+	// the angle, in ticks into a rotation, at which the sector starts
+	long arrival = Machine.timer().getTime() + seek;
+	long start = (long) (sector % sectorsPerTrack) * Stats.RotationTime
+	    / sectorsPerTrack;
+	long position = arrival % Stats.RotationTime;
+	long rotation = (start - position + Stats.RotationTime)
+	    % Stats.RotationTime;
+
+	int transfer = Math.max(1, Stats.RotationTime / sectorsPerTrack);
+
+	return seek + (int) rotation + transfer*count;
+    }
+
+    private void startRequest(int sector, int count, byte[] data, int offset,
+			      boolean writing) {
+	Lib.assertTrue(!busy, "disk request already in progress");
+	Lib.assertTrue(sector >= 0 && count > 0 &&
+		       sector+count <= getNumSectors());
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= data.length);
+
+	busy = true;
+
+	int ticks = latency(sector, count);
+	headTrack = (sector+count-1) / sectorsPerTrack;
+
+	if (writing) {
+	    contents.position(sector*sectorSize);
+	    contents.put(data, offset, count*sectorSize);
+	    privilege.stats.numDiskWrites++;
+	}
+	else {
+	    requestSector = sector;
+	    requestCount = count;
+	    requestData = data;
+	    requestOffset = offset;
+	    privilege.stats.numDiskReads++;
+	}
+
+	privilege.interrupt.schedule(ticks, writing ? "disk write" : "disk read",
+				     interrupt);
+    }
+
+    private void requestDone() {
+	if (requestData != null) {
+	    contents.position(requestSector*sectorSize);
+	    contents.get(requestData, requestOffset, requestCount*sectorSize);
+	    requestData = null;
+	}
+
+	busy = false;
+
+	if (interruptHandler != null)
+	    interruptHandler.run();
+    }
+
+    /** The number of bytes in a sector. */
+    public static final int sectorSize = 512;
+    /** The number of sectors on a track. */
+    public static final int sectorsPerTrack = 32;
+
+    private Privilege privilege;
+    private Runnable interrupt;
+    private Runnable interruptHandler = null;
+
+    private int numTracks;
+    private MappedByteBuffer contents = null;
+
+    private boolean busy = false;
+    private int headTrack = 0;
+    private int requestSector;
+    private int requestCount;
+    private byte[] requestData = null;
+    private int requestOffset;
+}
@@ -182,6 +182,9 @@ public final class Machine {
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege);
+
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
@@ -330,6 +333,13 @@ public final class Machine {
      */
     public static SerialConsole console() { return console; }
     
+    /**
+     * Return the simulated disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+
     /**
      * Return the stub filesystem.
      *
@@ -356,6 +366,7 @@ public final class Machine {
     private static ElevatorBank bank = null;
     private static Processor processor = null;
     private static SerialConsole console = null;
+    private static Disk disk = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
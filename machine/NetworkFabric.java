@@ -0,0 +1,128 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A network inside the JVM, which network links use instead of UDP sockets
+ * when <tt>NetworkLink.fabric</tt> is true. Each link attached to the fabric
+ * has an address and an inbox. A packet is passed to the link attached at its
+ * destination address as is, with no buffer copied or allocated, and can be
+ * received once its arrival time has come. Packets sent to an address that no
+ * link is attached to are lost, as are packets sent to a full inbox.
+ *
+ * <p>
+ * All the links on the fabric share the machine's interrupt controller, and
+ * arrival times are measured in simulated ticks. Packets are dropped by the
+ * same random number generator as the rest of the machine, so a run on the
+ * fabric does not depend on the host's network or scheduler, and repeats
+ * exactly for the same random seed.
+ */
+final class NetworkFabric {
+    private NetworkFabric() {
+    }
+
+    /**
+     * Attach a link to the fabric, at the lowest free address.
+     *
+     * @param	link	the link to attach.
+     * @return	the link's end of the fabric, or <tt>null</tt> if every
+     *		address is taken.
+     */
+    static Endpoint attach(NetworkLink link) {
+	for (int address=0; address<Packet.linkAddressLimit; address++) {
+	    if (!endpoints.containsKey(address)) {
+		Endpoint endpoint = new Endpoint(link, address);
+		endpoints.put(address, endpoint);
+		return endpoint;
+	    }
+	}
+
+	return null;
+    }
+
+    /**
+     * Send a packet to the link attached at its destination address, and
+     * tell that link a packet is on its way.
+     *
+     * @param	packet		the packet.
+     * @param	arrivalTime	the first time the packet can be received.
+     * @return	<tt>true</tt> if the packet was queued.
+     */
+    static boolean transmit(Packet packet, long arrivalTime) {
+	Endpoint endpoint = endpoints.get(packet.dstLink);
+	if (endpoint == null || endpoint.inbox.size() >= maxQueued)
+	    return false;
+
+	endpoint.inbox.add(new Delivery(packet, arrivalTime));
+	endpoint.link.packetQueued();
+	return true;
+    }
+
+    /**
+     * A link's end of the fabric.
+     */
+    static class Endpoint {
+	private Endpoint(NetworkLink link, int address) {
+	    this.link = link;
+	    this.address = address;
+	}
+
+	/**
+	 * Return the address the link is attached at.
+	 *
+	 * @return	the link address.
+	 */
+	int getAddress() {
+	    return address;
+	}
+
+	/**
+	 * Take the next packet from the inbox, if it has arrived.
+	 *
+	 * @param	time	the current time.
+	 * @return	the packet, or <tt>null</tt> if none has arrived.
+	 */
+	Packet receive(long time) {
+	    Delivery delivery = inbox.peek();
+	    if (delivery == null || delivery.arrivalTime > time)
+		return null;
+
+	    inbox.removeFirst();
+	    return delivery.packet;
+	}
+
+	/**
+	 * Return the time the next packet in the inbox arrives. Packets
+	 * arrive in the order they were sent.
+	 *
+	 * @return	the arrival time, or -1 if the inbox is empty.
+	 */
+	long nextArrival() {
+	    Delivery delivery = inbox.peek();
+	    return (delivery == null) ? -1 : delivery.arrivalTime;
+	}
+
+	private NetworkLink link;
+	private int address;
+	private LinkedList<Delivery> inbox = new LinkedList<Delivery>();
+    }
+
+    private static class Delivery {
+	Delivery(Packet packet, long arrivalTime) {
+	    this.packet = packet;
+	    this.arrivalTime = arrivalTime;
+	}
+
+	Packet packet;
+	long arrivalTime;
+    }
+
+    private static HashMap<Integer,Endpoint> endpoints =
+	new HashMap<Integer,Endpoint>();
+
+    /** The most packets in flight to one link before more are dropped. */
+    private static final int maxQueued = 64;
+}
@@ -67,13 +67,28 @@ public class NetworkLink {
      * reliability, between 0 and 1, is the probability that any particular
      * packet will not get dropped by the network.
      *
+     * <p>
+     * If <tt>NetworkLink.fabric</tt> is true, the link is attached to a
+     * <tt>NetworkFabric</tt> inside this JVM instead of a UDP socket, and
+     * can reach the other links attached with <tt>attachLink()</tt>. A
+     * packet on the fabric then arrives <tt>NetworkLink.latency</tt> ticks
+     * after it is sent, and takes a time to send set by
+     * <tt>NetworkLink.bandwidth</tt>, in bytes per 1000 ticks; by default, a
+     * packet of any size takes <tt>Stats.NetworkTime</tt> ticks.
+     *
      * @param	privilege      	encapsulates privileged access to the Nachos
      * 				machine.
      */
     public NetworkLink(Privilege privilege) {
 	System.out.print(" network");
 
-	this.privilege = privilege;
+	initialize(privilege);
+
+	if (Config.getBoolean("NetworkLink.fabric", false)) {
+	    attachFabric();
+	    System.out.print("(" + linkAddress + ", fabric)");
+	    return;
+	}
 
 	try {
 	    localHost = InetAddress.getLocalHost();
@@ -84,9 +99,6 @@ public class NetworkLink {
 
 	Lib.assertTrue(localHost != null);
 
-	reliability = Config.getDouble("NetworkLink.reliability");
-	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
-
 	socket = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
@@ -106,6 +118,29 @@ public class NetworkLink {
 
 	System.out.print("(" + linkAddress + ")");
 
+	scheduleReceiveInterrupt();
+
+	Thread receiveThread = new Thread(new Runnable() {
+		public void run() { receiveLoop(); }
+	    });
+
+	receiveThread.start();
+    }
+
+    /**
+     * Allocate another link on the same fabric as <tt>link</tt>.
+     */
+    private NetworkLink(NetworkLink link) {
+	initialize(link.privilege);
+	attachFabric();
+    }
+
+    private void initialize(Privilege privilege) {
+	this.privilege = privilege;
+
+	reliability = Config.getDouble("NetworkLink.reliability");
+	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -113,14 +148,42 @@ public class NetworkLink {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+    }
 
-	Thread receiveThread = new Thread(new Runnable() {
-		public void run() { receiveLoop(); }
-	    });
+    /**
+     * Attach this link to the in-JVM network fabric, at the first free
+     * address.
+     */
+    private void attachFabric() {
+	latency = Config.getInteger("NetworkLink.latency", 0);
+	bandwidth = Config.getInteger("NetworkLink.bandwidth", 0);
+	Lib.assertTrue(latency >= 0 && bandwidth >= 0);
 
-	receiveThread.start();
+	fabric = NetworkFabric.attach(this);
+
+	if (fabric == null) {
+	    System.out.println("");
+	    System.out.println("Unable to acquire a link address!");
+	    Lib.assertNotReached();
+	}
+
+	linkAddress = (byte) fabric.getAddress();
+    }
+
+    /**
+     * Attach another link to this link's network fabric, at the first free
+     * address. The new link shares this machine's interrupt controller and
+     * statistics, and can exchange packets with every other link on the
+     * fabric, so that several nodes can be run in one JVM.
+     *
+     * @return	the new link, or <tt>null</tt> if this link does not use the
+     *		fabric.
+     */
+    public NetworkLink attachLink() {
+	if (fabric == null)
+	    return null;
+
+	return new NetworkLink(this);
     }
 
     /**
@@ -156,14 +219,57 @@ public class NetworkLink {
     }
 
     private void scheduleReceiveInterrupt() {
+	if (fabric != null) {
+	    scheduleArrival();
+	    return;
+	}
+
 	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
 				     receiveInterrupt);
     }
 
+    /**
+     * Called by the fabric when a packet is queued for this link.
+     */
+    void packetQueued() {
+	if (incomingPacket == null)
+	    scheduleArrival();
+    }
+
+    /**
+     * On the fabric, schedule the receive interrupt for the time the next
+     * packet arrives, if one is on its way and no interrupt is scheduled.
+     */
+    private void scheduleArrival() {
+	long arrivalTime = fabric.nextArrival();
+	if (arrivalTime == -1 || arrivalScheduled)
+	    return;
+
+	arrivalScheduled = true;
+	privilege.interrupt.schedule(Math.max(1, arrivalTime -
+					      privilege.stats.totalTicks),
+				     "network recv", receiveInterrupt);
+    }
+
     private synchronized void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
-	if (incomingBytes != null) {
+	if (fabric != null) {
+	    arrivalScheduled = false;
+
+	    Packet p = fabric.receive(privilege.stats.totalTicks);
+
+	    if (p != null && Machine.autoGrader().canReceivePacket(privilege)) {
+		incomingPacket = p;
+		privilege.stats.numPacketsReceived++;
+	    }
+
+	    if (incomingPacket == null)
+		scheduleReceiveInterrupt();
+	    else if (receiveInterruptHandler != null)
+		receiveInterruptHandler.run();
+	}
+	else if (incomingBytes != null) {
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
 		    incomingPacket = new Packet(incomingBytes);
@@ -239,9 +345,16 @@ public class NetworkLink {
 	}
     }		
     
-    private void scheduleSendInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				     sendInterrupt);
+    private void scheduleSendInterrupt(Packet pkt) {
+	long sendTime = Stats.NetworkTime;
+
+	// on the fabric, a packet's size may set how long it takes to send
+	if (fabric != null && bandwidth > 0) {
+	    sendTime = Math.max(1, ((long) pkt.packetBytes.length*1000
+				    + bandwidth-1) / bandwidth);
+	}
+
+	privilege.interrupt.schedule(sendTime, "network send", sendInterrupt);
     }
 
     private void sendInterrupt() {
@@ -266,6 +379,13 @@ public class NetworkLink {
     private void sendPacket() {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
+
+	if (fabric != null) {
+	    NetworkFabric.transmit(p, privilege.stats.totalTicks + latency);
+
+	    privilege.stats.numPacketsSent++;
+	    return;
+	}
 	
 	try {
 	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
@@ -285,7 +405,7 @@ public class NetworkLink {
      */       
     public void send(Packet pkt) {
 	if (outgoingPacket == null)
-	    scheduleSendInterrupt();
+	    scheduleSendInterrupt(pkt);
 	
 	outgoingPacket = pkt;
     }
@@ -318,6 +438,11 @@ public class NetworkLink {
     private InetAddress localHost;
     private DatagramSocket socket;
 
+    /** This link's end of the in-JVM fabric, if it is used. */
+    private NetworkFabric.Endpoint fabric = null;
+    private int latency, bandwidth;
+    private boolean arrivalScheduled = false;
+
     private byte linkAddress;
     private double reliability;
 
@@ -214,6 +214,9 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid || !entry.superPage ||
+		       (entry.vpn % pagesPerSuperPage == 0 &&
+			entry.ppn % pagesPerSuperPage == 0));
 
 	translations[number] = new TranslationEntry(entry);
     }
@@ -279,6 +282,35 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Set the address space identifier of the running program. Only TLB
+     * entries tagged with this ASID are used to translate addresses, so the
+     * TLB need not be flushed when switching between programs with different
+     * ASIDs. Each change of ASID is counted as a context switch.
+     *
+     * @param	asid	the ASID of the program about to run.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	if (asid != this.asid) {
+	    privilege.stats.numContextSwitches++;
+	    this.asid = asid;
+	}
+    }
+
+    /**
+     * Return the address space identifier of the running program.
+     *
+     * @return	the current ASID.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return asid;
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -322,10 +354,14 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through all TLB entries for matching vpn and asid
 	else {
 	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
+		if (translations[i].valid && translations[i].asid == asid &&
+		    (translations[i].vpn == vpn ||
+		     (translations[i].superPage &&
+		      vpn - translations[i].vpn >= 0 &&
+		      vpn - translations[i].vpn < pagesPerSuperPage))) {
 		    entry = translations[i];
 		    break;
 		}
@@ -345,6 +381,8 @@ public final class Processor {
 
 	// check if physical page number is out of range
 	int ppn = entry.ppn;
+	if (usingTLB && entry.superPage)
+	    ppn += vpn - entry.vpn;
 	if (ppn < 0 || ppn >= numPhysPages) {
 	    Lib.debug(dbgProcessor, "\t\tbad ppn");
 	    throw new MipsException(exceptionBusError, vaddr);
@@ -541,6 +579,8 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The address space identifier that TLB entries must match. */
+    private int asid = 0;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -551,6 +591,10 @@ public final class Processor {
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
+    /** Number of distinct address space identifiers a TLB entry can hold. */
+    public static final int numASIDs = 64;
+    /** Number of pages mapped by a superpage TLB entry. */
+    public static final int pagesPerSuperPage = 2;
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
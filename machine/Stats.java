@@ -6,6 +6,12 @@ import nachos.machine.*;
 
 /**
  * An object that maintains Nachos runtime statistics.
+ *
+ * <p>
+ * Only the simulated hardware updates these counters, and only with events
+ * it observes itself, such as a disk transfer, a TLB miss, or a change of
+ * address space. Figures that depend on the kernel's policies, such as
+ * evictions or swap traffic, are kept and printed by the kernel.
  */
 public final class Stats {
     /**
@@ -27,6 +33,10 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (numContextSwitches > 0)
+	    System.out.println("TLB: context switches " + numContextSwitches
+			       + ", misses per switch "
+			       + numTLBMisses/numContextSwitches);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +67,8 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of times the processor's ASID has changed. */
+    public int numContextSwitches = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
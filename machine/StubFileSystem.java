@@ -8,6 +8,7 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.LinkedHashMap;
 
 /**
  * This class implements a file system that redirects all requests to the host
@@ -29,15 +30,35 @@ public class StubFileSystem implements FileSystem {
     public OpenFile open(String name, boolean truncate) {
 	if (!checkName(name))
 	    return null;
-	
-	delay();
-	    
-	try {
-	    return new StubOpenFile(name, truncate);
+
+	Handle handle = handles.get(name);
+
+	// a pooled host file can be used again without another host open
+	if (handle != null && handle.file != null) {
+	    numHandleHits++;
 	}
-	catch (IOException e) {
-	    return null;
+	else {
+	    delay();
+
+	    // another thread may have opened it meanwhile
+	    handle = handles.get(name);
+	    if (handle == null) {
+		handle = new Handle(name);
+		handles.put(name, handle);
+	    }
+
+	    if (!handle.reopen(truncate)) {
+		if (handle.numUsers == 0)
+		    handles.remove(name);
+		return null;
+	    }
 	}
+
+	if (truncate && !handle.truncate())
+	    return null;
+
+	handle.numUsers++;
+	return new StubOpenFile(handle);
     }
     
     public boolean remove(String name) {
@@ -46,6 +67,18 @@ public class StubFileSystem implements FileSystem {
 
 	delay();
 
+	// open files keep using the removed host file, so it must stay open
+	Handle handle = handles.remove(name);
+	if (handle != null) {
+	    if (handle.numUsers == 0) {
+		handle.close();
+	    }
+	    else {
+		handle.reopen(false);
+		handle.removed = true;
+	    }
+	}
+
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
 	return fr.successful;
@@ -71,39 +104,143 @@ public class StubFileSystem implements FileSystem {
 	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
     }
 
-    private class StubOpenFile extends OpenFileWithPosition {
-	StubOpenFile(final String name, final boolean truncate)
-	    throws IOException {
-	    super(StubFileSystem.this, name);
+    /**
+     * A host file shared by every open file with the same name. Only
+     * <tt>maxHandles</tt> host files are kept open. When another is needed,
+     * the least recently used one is closed, preferably one that no open
+     * file refers to, and it is opened again the next time it is used.
+     */
+    private class Handle {
+	Handle(String name) {
+	    this.name = name;
+	}
 
-	    final File f = new File(directory, name);
+	/**
+	 * Return the host file, opening it again if it was closed.
+	 *
+	 * @return	the host file, or <tt>null</tt> if it cannot be opened.
+	 */
+	RandomAccessFile get() {
+	    // touch the entry, to keep the pool in LRU order
+	    if (!removed)
+		handles.get(name);
+
+	    if (file == null && !reopen(false))
+		return null;
+
+	    return file;
+	}
+
+	/**
+	 * Open the host file if it is not open, making room in the pool.
+	 *
+	 * @param	create	<tt>true</tt> to create the file if it does not
+	 *			exist.
+	 * @return	<tt>true</tt> if the host file is open.
+	 */
+	boolean reopen(final boolean create) {
+	    if (file != null)
+		return true;
+	    if (removed)
+		return false;
 
-	    if (openCount == maxOpenFiles)
-		throw new IOException();
+	    final File f = new File(directory, name);
 
 	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
+		public void run() {
+		    try {
+			if (create || f.exists())
+			    file = new RandomAccessFile(f, "rw");
+		    }
+		    catch (IOException e) {
+		    }
+		}
 	    });
 
 	    if (file == null)
-		throw new IOException();
+		return false;
 
-	    open = true;
-	    openCount++;
+	    numHandleOpens++;
+	    if (++numOpenHandles > maxHandles)
+		evict(this);
+
+	    return true;
 	}
 
-	private void getRandomAccessFile(File f, boolean truncate) {
-	    try {
-		if (!truncate && !f.exists())
-		    return;
+	boolean truncate() {
+	    final boolean[] successful = new boolean[1];
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			file.setLength(0);
+			successful[0] = true;
+		    }
+		    catch (IOException e) {
+		    }
+		}
+	    });
+
+	    return successful[0];
+	}
 
-		file = new RandomAccessFile(f, "rw");
+	void close() {
+	    if (file == null)
+		return;
 
-		if (truncate)
-		    file.setLength(0);
+	    try {
+		file.close();
 	    }
 	    catch (IOException e) {
 	    }
+
+	    file = null;
+	    numOpenHandles--;
+	}
+
+	String name;
+	RandomAccessFile file = null;
+	/** The number of open files using this host file. */
+	int numUsers = 0;
+	/** <tt>true</tt> if the file was removed while open. */
+	boolean removed = false;
+    }
+
+    /**
+     * Close the least recently used host file, preferring one that no open
+     * file refers to.
+     *
+     * @param	opened	the host file just opened, which is not closed.
+     */
+    private void evict(Handle opened) {
+	Handle victim = null;
+	for (Handle handle : handles.values()) {
+	    if (handle.file == null || handle == opened)
+		continue;
+
+	    if (handle.numUsers == 0) {
+		victim = handle;
+		break;
+	    }
+	    if (victim == null)
+		victim = handle;
+	}
+
+	// only removed files, which cannot be reopened, are left
+	if (victim == null)
+	    return;
+
+	victim.close();
+	if (victim.numUsers == 0)
+	    handles.remove(victim.name);
+    }
+
+    private class StubOpenFile extends OpenFileWithPosition {
+	StubOpenFile(Handle handle) {
+	    super(StubFileSystem.this, handle.name);
+
+	    this.handle = handle;
+	    open = true;
 	}
 
 	public int read(int pos, byte[] buf, int offset, int length) {
@@ -113,6 +250,10 @@ public class StubFileSystem implements FileSystem {
 	    try {
 		delay();
 
+		RandomAccessFile file = handle.get();
+		if (file == null)
+		    return -1;
+
 		file.seek(pos);
 		return Math.max(0, file.read(buf, offset, length));
 	    }
@@ -127,7 +268,11 @@ public class StubFileSystem implements FileSystem {
 	    
 	    try {
 		delay();
-		
+
+		RandomAccessFile file = handle.get();
+		if (file == null)
+		    return -1;
+
 		file.seek(pos);
 		file.write(buf, offset, length);
 		return length;
@@ -138,8 +283,12 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	public int length() {
+	    if (!open)
+		return -1;
+
 	    try {
-		return (int) file.length();
+		RandomAccessFile file = handle.get();
+		return (file == null) ? -1 : (int) file.length();
 	    }
 	    catch (IOException e) {
 		return -1;
@@ -147,24 +296,50 @@ public class StubFileSystem implements FileSystem {
 	}
 
 	public void close() {
-	    if (open) {
-		open = false;
-		openCount--;
-	    }
-		
-	    try {
-		file.close();
-	    }
-	    catch (IOException e) {
+	    if (!open)
+		return;
+
+	    open = false;
+
+	    // an unused host file stays open in the pool, unless it is gone
+	    if (--handle.numUsers == 0) {
+		if (handle.removed)
+		    handle.close();
+		else if (handle.file == null)
+		    handles.remove(handle.name);
 	    }
 	}
 
-	private RandomAccessFile file = null;
+	private Handle handle;
 	private boolean open = false;
     }
 
-    private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    /**
+     * Return the number of opens that found their host file already open in
+     * the pool.
+     *
+     * @return	the number of pool hits.
+     */
+    public int getHandleHits() {
+	return numHandleHits;
+    }
+
+    /**
+     * Return the number of times a host file was opened.
+     *
+     * @return	the number of host opens.
+     */
+    public int getHandleOpens() {
+	return numHandleOpens;
+    }
+
+    /** Host files by name, in LRU order, excluding removed files. */
+    private LinkedHashMap<String,Handle> handles =
+	new LinkedHashMap<String,Handle>(16, 0.75f, true);
+    private int numOpenHandles = 0;
+    private int numHandleHits = 0, numHandleOpens = 0;
+    /** The most host files kept open at once. */
+    private static final int maxHandles = 16;
     
     private Privilege privilege;
     private File directory;
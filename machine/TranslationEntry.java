@@ -48,6 +48,8 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
+	superPage = entry.superPage;
     }
 
     /** The virtual page number. */
@@ -78,4 +80,22 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space identifier. A TLB entry only translates addresses
+     * while the processor's ASID (see <tt>Processor.setASID()</tt>) matches
+     * it, so entries belonging to several address spaces can coexist in the
+     * TLB. Ignored when the processor uses a page table.
+     */
+    public int asid = 0;
+
+    /**
+     * If this flag is <tt>true</tt>, this TLB entry is a superpage: it maps
+     * the <tt>Processor.pagesPerSuperPage</tt> virtual pages starting at
+     * <tt>vpn</tt> to as many physical pages starting at <tt>ppn</tt>. Both
+     * must be multiples of <tt>Processor.pagesPerSuperPage</tt>. The used and
+     * dirty bits cover the whole superpage. Ignored when the processor uses
+     * a page table.
+     */
+    public boolean superPage = false;
 }
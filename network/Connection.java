@@ -0,0 +1,522 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * One end of a transport connection, used as an open file. A read returns
+ * whatever data has arrived without waiting, and returns -1 once the remote
+ * end has closed the connection and all of its data has been read. A write
+ * queues its data to be sent, waiting only while the send queue is full.
+ *
+ * <p>
+ * Every field is protected by the transport's lock. A connection stays
+ * known to the transport until both ends have closed it and both FINs have
+ * been acknowledged, so data that arrives after this end is closed is still
+ * acknowledged, and then discarded.
+ */
+class Connection extends OpenFile implements Pollable {
+    Connection(Transport transport, int localPort, int remoteLink,
+	       int remotePort) {
+	super(null, "connection");
+
+	this.transport = transport;
+	this.localPort = localPort;
+	this.remoteLink = remoteLink;
+	this.remotePort = remotePort;
+
+	timeout = transport.retransmitTimeout;
+	remoteWindow = transport.windowSize;
+	advertisedWindow = transport.windowSize;
+
+	stateChanged = new Condition2(transport.lock);
+	spaceReady = new Condition2(transport.lock);
+    }
+
+    long key() {
+	return Transport.key(localPort, remoteLink, remotePort);
+    }
+
+    /**
+     * Build a message with no data to the remote end.
+     */
+    MailMessage control(int flags, int seq) {
+	return Transport.message(remoteLink, remotePort, localPort, flags, seq,
+				 new byte[0]);
+    }
+
+    /**
+     * Build an acknowledgement of everything received in order, carrying
+     * the number of segments this end has room for.
+     */
+    MailMessage acknowledgement() {
+	advertisedWindow = receiveWindow();
+	return Transport.message(remoteLink, remotePort, localPort,
+				 Transport.flagAck, expectedSeq,
+				 new byte[] { (byte) advertisedWindow });
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+	transport.lock.acquire();
+
+	if (localClosed) {
+	    transport.lock.release();
+	    return -1;
+	}
+
+	int amount = 0;
+	while (amount < length && !received.isEmpty()) {
+	    byte[] data = received.getFirst();
+	    int chunk = Math.min(length-amount, data.length-receivedOffset);
+
+	    System.arraycopy(data, receivedOffset, buf, offset+amount, chunk);
+	    amount += chunk;
+	    receivedOffset += chunk;
+	    numReceived -= chunk;
+
+	    if (receivedOffset == data.length) {
+		received.removeFirst();
+		receivedOffset = 0;
+	    }
+	}
+
+	if (amount == 0 && (remoteClosed || state == broken))
+	    amount = -1;
+
+	// the sender is waiting for a closed window to open
+	MailMessage update = null;
+	if (advertisedWindow == 0 && receiveWindow() > 0 && !remoteClosed)
+	    update = acknowledgement();
+
+	transport.lock.release();
+
+	if (update != null)
+	    transport.send(update);
+
+	return amount;
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+	LinkedList<MailMessage> messages = new LinkedList<MailMessage>();
+	int amount = 0;
+
+	transport.lock.acquire();
+
+	while (amount < length) {
+	    if (localClosed || remoteClosed || state == broken)
+		break;
+
+	    if (unsent.size() + unacked.size() >= sendQueueLimit()) {
+		// start sending what is queued before waiting for room
+		transmit(messages);
+		if (!messages.isEmpty()) {
+		    transport.lock.release();
+		    transport.send(messages);
+		    messages.clear();
+		    transport.lock.acquire();
+		}
+		else {
+		    spaceReady.sleep();
+		}
+		continue;
+	    }
+
+	    int chunk = Math.min(length-amount, Transport.maxData);
+	    byte[] data = new byte[chunk];
+	    System.arraycopy(buf, offset+amount, data, 0, chunk);
+
+	    unsent.add(new Segment(nextSeq++, data, false));
+	    amount += chunk;
+	}
+
+	transmit(messages);
+
+	transport.lock.release();
+
+	transport.send(messages);
+
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    /**
+     * Close this end of the connection. Any data still queued is sent,
+     * followed by a FIN, after the file is closed.
+     */
+    public void close() {
+	LinkedList<MailMessage> messages = new LinkedList<MailMessage>();
+
+	transport.lock.acquire();
+
+	if (!localClosed) {
+	    localClosed = true;
+	    received.clear();
+	    numReceived = 0;
+
+	    if (state == broken) {
+		transport.remove(this);
+	    }
+	    else {
+		unsent.add(new Segment(nextSeq++, new byte[0], true));
+		transmit(messages);
+	    }
+
+	    spaceReady.wakeAll();
+	}
+
+	transport.lock.release();
+
+	transport.send(messages);
+    }
+
+    /**
+     * Move queued segments into the window, up to the window size or the
+     * window the remote end last advertised, and add the messages to send
+     * them to a list. While the remote window is closed, one segment is
+     * still sent, to probe it.
+     *
+     * @param	messages	the list of messages to send once the lock is
+     *				released.
+     */
+    void transmit(LinkedList<MailMessage> messages) {
+	if (state != established)
+	    return;
+
+	long now = Machine.timer().getTime();
+	int window = Math.max(1, Math.min(remoteWindow, transport.windowSize));
+	while (!unsent.isEmpty() && unacked.size() < window) {
+	    Segment segment = unsent.removeFirst();
+	    segment.sentTime = now;
+	    unacked.add(segment);
+
+	    messages.add(segment.message(this));
+	    transport.numDataSent++;
+	}
+
+	if (!unacked.isEmpty())
+	    transport.wakeRetransmitter();
+    }
+
+    /**
+     * Handle a cumulative acknowledgement of every segment before
+     * <i>seq</i>.
+     *
+     * @param	seq		the sequence number the remote end expects next.
+     * @param	window		the number of segments the remote end has room
+     *				for.
+     * @param	messages	the list of messages to send once the lock is
+     *				released.
+     */
+    void acknowledged(int seq, int window, LinkedList<MailMessage> messages) {
+	boolean reopened = (remoteWindow == 0 && window > 0);
+	boolean windowUpdate = (window != remoteWindow);
+	remoteWindow = window;
+
+	if (unacked.isEmpty())
+	    return;
+
+	if (seq - unacked.getFirst().seq <= 0) {
+	    if (reopened) {
+		// resend the refused probe now rather than when it times out
+		resend(unacked.getFirst(), messages);
+		transport.numWindowProbes++;
+	    }
+	    else if (!windowUpdate && window > 0 && ++duplicateAcks == 3) {
+		// a duplicate means a later segment arrived before the first
+		resend(unacked.getFirst(), messages);
+		transport.numRetransmitted++;
+		transport.numFastRetransmits++;
+	    }
+	    return;
+	}
+
+	duplicateAcks = 0;
+
+	boolean finAcked = false;
+	Segment newest = null;
+	while (!unacked.isEmpty() && seq - unacked.getFirst().seq > 0) {
+	    Segment segment = unacked.removeFirst();
+	    if (segment.fin)
+		finAcked = true;
+	    newest = segment;
+	}
+
+	// a resent segment's round trip is ambiguous, so it is not measured
+	if (!newest.resent)
+	    sampleRoundTrip(Machine.timer().getTime() - newest.sentTime);
+
+	if (finAcked) {
+	    // wait for the remote end's FIN before forgetting the connection
+	    if (remoteClosed)
+		transport.remove(this);
+	    return;
+	}
+
+	spaceReady.wakeAll();
+	signalWaitSets();
+    }
+
+    /**
+     * Add a segment that is waiting for its acknowledgement to a list of
+     * messages to send again.
+     */
+    private void resend(Segment segment, LinkedList<MailMessage> messages) {
+	segment.sentTime = Machine.timer().getTime();
+	segment.resent = true;
+	messages.add(segment.message(this));
+    }
+
+    /**
+     * Handle a data segment or a FIN from the remote end. A segment beyond
+     * the window this end advertised is dropped; it is still acknowledged,
+     * so the sender learns the current window.
+     */
+    void received(int seq, byte[] data, boolean fin) {
+	if (seq - expectedSeq < 0)
+	    return;
+	// a FIN takes no room, so it is never refused
+	if (seq - expectedSeq >= receiveWindow() &&
+	    !(fin && seq == expectedSeq))
+	    return;
+
+	if (!outOfOrder.containsKey(seq)) {
+	    outOfOrder.put(seq, new Segment(seq, data, fin));
+	    numOutOfOrder += data.length;
+	}
+
+	Segment segment;
+	while ((segment = outOfOrder.remove(expectedSeq)) != null) {
+	    numOutOfOrder -= segment.data.length;
+	    expectedSeq++;
+
+	    if (segment.fin) {
+		remoteClosed = true;
+		spaceReady.wakeAll();
+
+		if (localClosed && unsent.isEmpty() && unacked.isEmpty())
+		    transport.remove(this);
+	    }
+	    else if (!localClosed && segment.data.length > 0) {
+		received.add(segment.data);
+		numReceived += segment.data.length;
+		transport.numBytesDelivered += segment.data.length;
+	    }
+	}
+
+	signalWaitSets();
+    }
+
+    /**
+     * Return the earliest time a segment will have waited too long for its
+     * acknowledgement.
+     *
+     * @return	the time, or -1 if no segment is waiting.
+     */
+    long deadline() {
+	// only the probe is timed while the remote window is closed
+	if (remoteWindow == 0 && !unacked.isEmpty())
+	    return unacked.getFirst().sentTime + timeout;
+
+	long deadline = -1;
+	for (Segment segment : unacked) {
+	    if (deadline == -1 || segment.sentTime < deadline)
+		deadline = segment.sentTime;
+	}
+
+	return (deadline == -1) ? -1 : deadline + timeout;
+    }
+
+    /**
+     * If a segment has waited too long for an acknowledgement, add it to a
+     * list of messages to send again, and back off the timeout. Only the
+     * oldest such segment is resent, since the receiver holds the later ones
+     * if they arrived, and acknowledges them all once the gap is filled.
+     * While the remote window is closed, only the first segment is resent,
+     * as a probe, and probing never gives up.
+     *
+     * @return	<tt>false</tt> if the connection has given up and should be
+     *		forgotten.
+     */
+    boolean expired(long now, LinkedList<MailMessage> messages) {
+	for (Segment segment : unacked) {
+	    if (now - segment.sentTime < timeout) {
+		if (remoteWindow == 0)
+		    break;
+		continue;
+	    }
+
+	    if (remoteWindow == 0) {
+		resend(segment, messages);
+		transport.numWindowProbes++;
+	    }
+	    else if (++segment.numRetransmits > maxRetransmits) {
+		state = broken;
+		unsent.clear();
+		unacked.clear();
+		stateChanged.wakeAll();
+		spaceReady.wakeAll();
+		signalWaitSets();
+
+		// keep the connection until the process closes it
+		return !localClosed;
+	    }
+	    else {
+		resend(segment, messages);
+		transport.numRetransmitted++;
+	    }
+
+	    timeout = Math.min(2*timeout, transport.retransmitTimeout);
+	    break;
+	}
+
+	return true;
+    }
+
+    /**
+     * Update the timeout from the round-trip time of a segment that was
+     * sent only once, keeping a smoothed average and mean deviation.
+     */
+    private void sampleRoundTrip(long rtt) {
+	if (smoothedRtt == -1) {
+	    smoothedRtt = rtt;
+	    rttDeviation = rtt/2;
+	}
+	else {
+	    rttDeviation = (3*rttDeviation + Math.abs(smoothedRtt-rtt)) / 4;
+	    smoothedRtt = (7*smoothedRtt + rtt) / 8;
+	}
+
+	timeout = (int) Math.max(minTimeout,
+				 Math.min(smoothedRtt + 4*rttDeviation,
+					  transport.retransmitTimeout));
+    }
+
+    public int poll() {
+	transport.lock.acquire();
+
+	int events = 0;
+	if (!received.isEmpty() || remoteClosed || state == broken)
+	    events |= pollIn;
+	if (remoteClosed)
+	    events |= pollHup;
+	if (state == broken)
+	    events |= pollErr;
+	else if (!remoteClosed &&
+		 unsent.size() + unacked.size() < sendQueueLimit())
+	    events |= pollOut;
+
+	transport.lock.release();
+	return events;
+    }
+
+    public void addWaitSet(WaitSet waitSet) {
+	transport.lock.acquire();
+	waitSets.add(waitSet);
+	transport.lock.release();
+    }
+
+    public void removeWaitSet(WaitSet waitSet) {
+	transport.lock.acquire();
+	waitSets.remove(waitSet);
+	transport.lock.release();
+    }
+
+    private void signalWaitSets() {
+	for (WaitSet waitSet : waitSets)
+	    waitSet.signal();
+    }
+
+    /** The most segments queued to send, counting those in flight. */
+    private int sendQueueLimit() {
+	return 4*transport.windowSize;
+    }
+
+    /** The most bytes held for the process before more are refused. */
+    private int receiveLimit() {
+	return 4*transport.windowSize*Transport.maxData;
+    }
+
+    /**
+     * Return the number of segments this end has room for, which fits in
+     * the byte of an acknowledgement that carries it.
+     */
+    private int receiveWindow() {
+	int window = (receiveLimit() - numReceived) / Transport.maxData;
+	return Math.max(0, Math.min(window, Math.min(transport.windowSize,
+						     255)));
+    }
+
+    /**
+     * A segment of the stream, with its sequence number.
+     */
+    private static class Segment {
+	Segment(int seq, byte[] data, boolean fin) {
+	    this.seq = seq;
+	    this.data = data;
+	    this.fin = fin;
+	}
+
+	MailMessage message(Connection connection) {
+	    return Transport.message(connection.remoteLink,
+				     connection.remotePort,
+				     connection.localPort,
+				     fin ? Transport.flagFin
+				     : Transport.flagData, seq, data);
+	}
+
+	int seq;
+	byte[] data;
+	boolean fin;
+	long sentTime;
+	int numRetransmits = 0;
+	boolean resent = false;
+    }
+
+    private Transport transport;
+
+    int localPort, remoteLink, remotePort;
+
+    int state = pending;
+    Condition2 stateChanged;
+    /** The time the last connection request was sent. */
+    long synTime;
+
+    private boolean localClosed = false, remoteClosed = false;
+
+    /** Segments queued behind the window. */
+    private LinkedList<Segment> unsent = new LinkedList<Segment>();
+    /** Segments sent but not yet acknowledged, in order. */
+    private LinkedList<Segment> unacked = new LinkedList<Segment>();
+    private int nextSeq = 0;
+    private int duplicateAcks = 0;
+    /** The number of segments the remote end last said it had room for. */
+    private int remoteWindow;
+    /** How long to wait for an acknowledgement, in ticks. */
+    private int timeout;
+    private long smoothedRtt = -1, rttDeviation = 0;
+    private Condition2 spaceReady;
+
+    /** The next sequence number to deliver. */
+    int expectedSeq = 0;
+    /** Segments that arrived ahead of <tt>expectedSeq</tt>. */
+    private TreeMap<Integer,Segment> outOfOrder = new TreeMap<Integer,Segment>();
+    private int numOutOfOrder = 0;
+    /** Data delivered in order but not yet read. */
+    private LinkedList<byte[]> received = new LinkedList<byte[]>();
+    private int receivedOffset = 0, numReceived = 0;
+    /** The window sent in the last acknowledgement. */
+    private int advertisedWindow;
+
+    private LinkedList<WaitSet> waitSets = new LinkedList<WaitSet>();
+
+    /** How often a segment is sent again before the connection gives up. */
+    private static final int maxRetransmits = 32;
+    /** The shortest timeout, enough to send a segment and its ACK. */
+    private static final int minTimeout = 4*Stats.NetworkTime;
+
+    static final int pending = 0, connecting = 1, established = 2,
+	broken = 3;
+}
@@ -24,6 +24,9 @@ public class NetKernel extends VMKernel {
 	super.initialize(args);
 
 	postOffice = new PostOffice();
+
+	transport = new Transport(postOffice);
+	postOffice.setTransport(transport);
     }
 
     /**
@@ -113,10 +116,15 @@ public class NetKernel extends VMKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	postOffice.print();
+	transport.print();
+
 	super.terminate();
     }
 
     private PostOffice postOffice;
+    /** The transport behind the <tt>connect()</tt> and <tt>accept()</tt> calls. */
+    static Transport transport;
 
     // dummy variables to make javac smarter
     private static NetProcess dummy1 = null;
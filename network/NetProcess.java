@@ -16,6 +16,45 @@ public class NetProcess extends VMProcess {
 	super();
     }
 
+    /**
+     * Handle the connect() system call, which waits until the remote host
+     * accepts the connection.
+     */
+    private int handleConnect(int host, int port) {
+	if (freeFileDescriptor() == -1)
+	    return -1;
+
+	return addConnection(NetKernel.transport.connect(host, port));
+    }
+
+    /**
+     * Handle the accept() system call, which never waits.
+     */
+    private int handleAccept(int port) {
+	if (freeFileDescriptor() == -1)
+	    return -1;
+
+	return addConnection(NetKernel.transport.accept(port));
+    }
+
+    /**
+     * Give a new connection a file descriptor.
+     */
+    private int addConnection(Connection connection) {
+	if (connection == null)
+	    return -1;
+
+	int fd = freeFileDescriptor();
+	if (fd == -1) {
+	    connection.close();
+	    return -1;
+	}
+
+	fileTable[fd] = connection;
+	referenceFile(connection);
+	return fd;
+    }
+
     private static final int
 	syscallConnect = 11,
 	syscallAccept = 12;
@@ -39,6 +78,11 @@ public class NetProcess extends VMProcess {
      */
     public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
 	switch (syscall) {
+	case syscallConnect:
+	    return handleConnect(a0, a1);
+	case syscallAccept:
+	    return handleAccept(a0);
+
 	default:
 	    return super.handleSyscall(syscall, a0, a1, a2, a3);
 	}
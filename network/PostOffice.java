@@ -3,6 +3,8 @@ package nachos.network;
 import nachos.machine.*;
 import nachos.threads.*;
 
+import java.util.LinkedList;
+
 /**
  * A collection of message queues, one for each local port. A
  * <tt>PostOffice</tt> interacts directly with the network hardware. Because
@@ -14,17 +16,30 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Outgoing messages wait in a queue of up to <tt>PostOffice.queueSize</tt>
+ * messages, which a "transmitter" thread hands to the network hardware one
+ * at a time, starting the next as soon as the last has been sent. A sender
+ * returns as soon as its message is queued, and only waits if the queue is
+ * full, so senders do not take turns holding the link for a whole packet
+ * time.
  */
 public class PostOffice {
     /**
      * Allocate a new post office, using an array of <tt>SynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
-     * "postal worker" thread.
+     * "postal worker" and "transmitter" threads.
      */
     public PostOffice() {
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
+	mailQueued = new Condition2(sendLock);
+	spaceAvailable = new Condition2(sendLock);
+
+	queueSize = Config.getInteger("PostOffice.queueSize", 16);
+	Lib.assertTrue(queueSize > 0);
 
 	queues = new SynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
@@ -44,6 +59,12 @@ public class PostOffice {
 	    });
 
 	t.fork();
+
+	KThread transmitter = new KThread(new Runnable() {
+		public void run() { transmit(); }
+	    });
+	transmitter.setName("transmitter");
+	transmitter.fork();
     }
 
     /**
@@ -66,6 +87,16 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Hand incoming messages to a transport before queueing them. Messages the
+     * transport does not claim are still put in the port's mailbox.
+     *
+     * @param	transport	the transport.
+     */
+    void setTransport(Transport transport) {
+	this.transport = transport;
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
@@ -88,6 +119,9 @@ public class PostOffice {
 		System.out.println("delivering mail to port " + mail.dstPort
 				   + ": " + mail);
 
+	    if (transport != null && transport.deliver(mail))
+		continue;
+
 	    // atomically add message to the mailbox and wake a waiting thread
 	    queues[mail.dstPort].add(mail);
 	}
@@ -102,7 +136,8 @@ public class PostOffice {
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. Returns once the
+     * message is queued, waiting only while the outgoing queue is full.
      */
     public void send(MailMessage mail) {
 	if (Lib.test(dbgNet))
@@ -110,12 +145,52 @@ public class PostOffice {
 
 	sendLock.acquire();
 
-	Machine.networkLink().send(mail.packet);
-	messageSent.P();
+	while (outbox.size() == queueSize) {
+	    numSenderWaits++;
+	    spaceAvailable.sleep();
+	}
+
+	outbox.add(mail);
+	numMessagesSent++;
+	maxQueued = Math.max(maxQueued, outbox.size());
+
+	mailQueued.wake();
 
 	sendLock.release();
     }
 
+    /**
+     * The body of the transmitter thread. Hands queued messages to the
+     * network hardware, one at a time, waiting only for the link and not for
+     * the sender.
+     */
+    private void transmit() {
+	while (true) {
+	    sendLock.acquire();
+
+	    while (outbox.isEmpty())
+		mailQueued.sleep();
+
+	    MailMessage mail = outbox.removeFirst();
+	    spaceAvailable.wake();
+
+	    sendLock.release();
+
+	    Machine.networkLink().send(mail.packet);
+	    messageSent.P();
+	}
+    }
+
+    /**
+     * Print how many messages were sent, and how often a sender had to wait
+     * for room in the outgoing queue.
+     */
+    public void print() {
+	System.out.println("Post office: messages sent " + numMessagesSent
+			   + ", max queued " + maxQueued + "/" + queueSize
+			   + ", sender waits " + numSenderWaits);
+    }
+
     /**
      * Called when a packet has been sent and another can be queued to the
      * network link. Note that this is called even if the previous packet was
@@ -128,7 +203,13 @@ public class PostOffice {
     private SynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
-    private Lock sendLock;
+    private Lock sendLock;		// protects the outgoing queue
+    private Condition2 mailQueued, spaceAvailable;
+    private LinkedList<MailMessage> outbox = new LinkedList<MailMessage>();
+    private int queueSize;
+
+    private int numMessagesSent = 0, maxQueued = 0, numSenderWaits = 0;
+    private Transport transport = null;
 
     private static final char dbgNet = 'n';
 }
@@ -0,0 +1,448 @@
+package nachos.network;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * A reliable, connection-oriented transport on top of the post office. Each
+ * connection is identified by its local port, and by the link address and
+ * port of the remote end.
+ *
+ * <p>
+ * Every transport message starts with a flags byte, a reserved byte, and a
+ * sequence number, followed by up to <tt>maxData</tt> bytes of data. The
+ * sender keeps up to <tt>windowSize</tt> data messages in flight, so the link
+ * stays busy instead of waiting a round trip for every message. The receiver
+ * holds messages that arrive out of order, delivers the data in order, and
+ * acknowledges each message with the next sequence number it expects and
+ * the number of messages it has room for, which the sender never exceeds.
+ * While that window is closed, the sender keeps probing it with a single
+ * message, and the receiver announces when a read opens it again. A
+ * message is sent again if it is not acknowledged in time, or as soon as
+ * three duplicate acknowledgements show that it was lost. Each connection
+ * estimates its round-trip time to choose its timeout, which is doubled
+ * after every retransmission and never exceeds <tt>retransmitTimeout</tt>
+ * ticks.
+ *
+ * <p>
+ * A connection request is acknowledged when it is accepted, so a two-way
+ * handshake is enough. Closing a connection sends a sequenced FIN after any
+ * data still queued; the connection is forgotten once each end's FIN has
+ * been acknowledged.
+ */
+class Transport {
+    /**
+     * Allocate a new transport, and start the thread that retransmits lost
+     * messages.
+     *
+     * @param	postOffice	the post office to send messages through.
+     */
+    Transport(PostOffice postOffice) {
+	this.postOffice = postOffice;
+
+	lock = new Lock();
+	outstanding = new Condition2(lock);
+
+	windowSize = Config.getInteger("Transport.windowSize", 16);
+	retransmitTimeout = Config.getInteger("Transport.retransmitTimeout",
+					      20000);
+	Lib.assertTrue(windowSize > 0 && retransmitTimeout > 0);
+
+	KThread t = new KThread(new Runnable() {
+		public void run() { retransmitLoop(); }
+	    });
+	t.setName("retransmitter");
+	t.fork();
+    }
+
+    /**
+     * Open a connection to a port on a remote machine, waiting until the
+     * remote machine accepts it.
+     *
+     * @param	host	the link address of the remote machine.
+     * @param	port	the remote port.
+     * @return	the new connection, or <tt>null</tt> if the arguments are
+     *		invalid or no local port is free.
+     */
+    Connection connect(int host, int port) {
+	if (host < 0 || host >= Packet.linkAddressLimit ||
+	    port < 0 || port >= MailMessage.portLimit)
+	    return null;
+
+	lock.acquire();
+
+	int localPort = freePort();
+	if (localPort == -1) {
+	    lock.release();
+	    return null;
+	}
+
+	Connection connection = new Connection(this, localPort, host, port);
+	connection.state = Connection.connecting;
+	connection.synTime = Machine.timer().getTime();
+	connections.put(connection.key(), connection);
+	numConnections++;
+	outstanding.wake();
+
+	lock.release();
+
+	send(connection.control(flagSyn, 0));
+
+	lock.acquire();
+	while (connection.state == Connection.connecting)
+	    connection.stateChanged.sleep();
+	lock.release();
+
+	return connection;
+    }
+
+    /**
+     * Accept a pending connection request on a local port, without waiting.
+     *
+     * @param	port	the local port.
+     * @return	the new connection, or <tt>null</tt> if no request is pending.
+     */
+    Connection accept(int port) {
+	if (port < 0 || port >= MailMessage.portLimit)
+	    return null;
+
+	lock.acquire();
+
+	LinkedList<Connection> requests = pending.get(port);
+	if (requests == null || requests.isEmpty()) {
+	    lock.release();
+	    return null;
+	}
+
+	Connection connection = requests.removeFirst();
+	connection.state = Connection.established;
+	connections.put(connection.key(), connection);
+	numConnections++;
+
+	lock.release();
+
+	send(connection.control(flagSyn|flagAck, 0));
+
+	return connection;
+    }
+
+    /**
+     * Handle a message that arrived from the network. A message is taken as
+     * a transport message only if it belongs to a known connection, is a
+     * connection request, or repeats the FIN of a connection that was just
+     * closed; any other mail is left for its port, whatever it holds.
+     *
+     * @param	mail	the message.
+     * @return	<tt>true</tt> if the message was a transport message, or
+     *		<tt>false</tt> if it should be queued at its port.
+     */
+    boolean deliver(MailMessage mail) {
+	if (mail.contents.length < headerLength || mail.contents[1] != 0)
+	    return false;
+
+	int flags = mail.contents[0];
+	int seq = Lib.bytesToInt(mail.contents, 2);
+	long key = key(mail.dstPort, mail.packet.srcLink, mail.srcPort);
+
+	LinkedList<MailMessage> replies = new LinkedList<MailMessage>();
+	boolean consumed = true;
+
+	lock.acquire();
+
+	Connection connection = connections.get(key);
+
+	if (connection == null) {
+	    if (flags == flagSyn && mail.contents.length == headerLength)
+		addRequest(mail);
+	    else if (flags == flagFin && closed.contains(key))
+		// our ACK of an earlier FIN was lost after we forgot the
+		// connection, so acknowledge it again
+		replies.add(control(mail, flagAck, seq+1));
+	    else
+		consumed = false;
+	}
+	else if (flags == flagSyn) {
+	    // the remote end did not hear that we accepted
+	    replies.add(connection.control(flagSyn|flagAck, 0));
+	}
+	else if (flags == (flagSyn|flagAck)) {
+	    if (connection.state == Connection.connecting) {
+		connection.state = Connection.established;
+		connection.stateChanged.wakeAll();
+	    }
+	}
+	else if (flags == flagAck) {
+	    // an ACK without a window comes from an end that forgot us
+	    int window = (mail.contents.length > headerLength)
+		? mail.contents[headerLength] & 0xFF : windowSize;
+	    connection.acknowledged(seq, window, replies);
+	}
+	else if (flags == flagData || flags == flagFin) {
+	    byte[] data = new byte[mail.contents.length - headerLength];
+	    System.arraycopy(mail.contents, headerLength, data, 0, data.length);
+
+	    connection.received(seq, data, flags == flagFin);
+	    replies.add(connection.acknowledgement());
+	}
+	else {
+	    consumed = false;
+	}
+
+	if (connection != null)
+	    connection.transmit(replies);
+
+	lock.release();
+
+	send(replies);
+	return consumed;
+    }
+
+    /**
+     * Queue a connection request on its port, unless it is already queued.
+     */
+    private void addRequest(MailMessage mail) {
+	LinkedList<Connection> requests = pending.get(mail.dstPort);
+	if (requests == null) {
+	    requests = new LinkedList<Connection>();
+	    pending.put(mail.dstPort, requests);
+	}
+
+	long key = key(mail.dstPort, mail.packet.srcLink, mail.srcPort);
+	for (Connection request : requests) {
+	    if (request.key() == key)
+		return;
+	}
+
+	if (requests.size() < maxPending) {
+	    requests.add(new Connection(this, mail.dstPort, mail.packet.srcLink,
+					mail.srcPort));
+	}
+    }
+
+    /**
+     * Find a local port that no connection or connection request uses.
+     */
+    private int freePort() {
+	for (int localPort=MailMessage.portLimit-1; localPort>0; localPort--) {
+	    boolean used = false;
+	    for (Connection connection : connections.values()) {
+		if (connection.localPort == localPort) {
+		    used = true;
+		    break;
+		}
+	    }
+
+	    if (!used && !pending.containsKey(localPort))
+		return localPort;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Forget a connection that is finished. Called with the lock held.
+     */
+    void remove(Connection connection) {
+	connections.remove(connection.key());
+	forget(connection);
+    }
+
+    /**
+     * Remember a finished connection for a while, so that a FIN resent by
+     * the remote end can still be acknowledged. Called with the lock held.
+     */
+    private void forget(Connection connection) {
+	closed.remove(connection.key());
+	closed.add(connection.key());
+
+	if (closed.size() > maxClosed) {
+	    Iterator<Long> i = closed.iterator();
+	    i.next();
+	    i.remove();
+	}
+    }
+
+    /**
+     * Send messages through the post office. Called without the lock held,
+     * since a sender waits while the post office's outgoing queue is full.
+     */
+    void send(LinkedList<MailMessage> messages) {
+	for (MailMessage mail : messages)
+	    send(mail);
+    }
+
+    void send(MailMessage mail) {
+	if (mail != null)
+	    postOffice.send(mail);
+    }
+
+    /**
+     * Wake the retransmitter, which sleeps while no connection has messages
+     * waiting to be acknowledged. Called with the lock held.
+     */
+    void wakeRetransmitter() {
+	outstanding.wake();
+    }
+
+    /**
+     * The body of the retransmitter thread. Sleeps until the earliest time a
+     * message could need to be resent, then resends every message that has
+     * waited longer than its connection's timeout for an acknowledgement.
+     */
+    private void retransmitLoop() {
+	LinkedList<MailMessage> resend = new LinkedList<MailMessage>();
+
+	while (true) {
+	    lock.acquire();
+
+	    long deadline;
+	    while ((deadline = nextDeadline()) == -1)
+		outstanding.sleep();
+
+	    lock.release();
+
+	    long delay = deadline - Machine.timer().getTime();
+	    if (delay > 0)
+		ThreadedKernel.alarm.waitUntil(delay);
+
+	    lock.acquire();
+
+	    long now = Machine.timer().getTime();
+	    for (Iterator<Connection> i=connections.values().iterator();
+		 i.hasNext(); ) {
+		Connection connection = i.next();
+
+		if (connection.state == Connection.connecting) {
+		    if (now - connection.synTime >= retransmitTimeout) {
+			connection.synTime = now;
+			resend.add(connection.control(flagSyn, 0));
+			numRetransmitted++;
+		    }
+		}
+		else if (!connection.expired(now, resend)) {
+		    i.remove();
+		    forget(connection);
+		}
+	    }
+
+	    lock.release();
+
+	    send(resend);
+	    resend.clear();
+	}
+    }
+
+    /**
+     * Find the earliest time a message could need to be resent. Called with
+     * the lock held.
+     *
+     * @return	the time, or -1 if no connection is waiting for an
+     *		acknowledgement.
+     */
+    private long nextDeadline() {
+	long deadline = -1;
+	for (Connection connection : connections.values()) {
+	    long time = (connection.state == Connection.connecting)
+		? connection.synTime + retransmitTimeout
+		: connection.deadline();
+
+	    if (time != -1 && (deadline == -1 || time < deadline))
+		deadline = time;
+	}
+
+	return deadline;
+    }
+
+    /**
+     * Print how much data the transport carried and how much of it had to be
+     * sent again, if any connection was made.
+     */
+    void print() {
+	if (numConnections == 0)
+	    return;
+
+	System.out.println("Transport: connections " + numConnections
+			   + ", data messages " + numDataSent
+			   + ", retransmitted " + numRetransmitted
+			   + " (" + numFastRetransmits + " fast, "
+			   + numWindowProbes + " window probes)"
+			   + ", bytes delivered " + numBytesDelivered);
+    }
+
+    /**
+     * Build a message to the sender of another.
+     */
+    static MailMessage control(MailMessage mail, int flags, int seq) {
+	return message(mail.packet.srcLink, mail.srcPort, mail.dstPort, flags,
+		       seq, new byte[0]);
+    }
+
+    /**
+     * Build a transport message.
+     *
+     * @return	the message, or <tt>null</tt> if it could not be built.
+     */
+    static MailMessage message(int dstLink, int dstPort, int srcPort,
+			       int flags, int seq, byte[] data) {
+	byte[] contents = new byte[headerLength + data.length];
+	contents[0] = (byte) flags;
+	Lib.bytesFromInt(contents, 2, seq);
+	System.arraycopy(data, 0, contents, headerLength, data.length);
+
+	try {
+	    return new MailMessage(dstLink, dstPort,
+				   Machine.networkLink().getLinkAddress(),
+				   srcPort, contents);
+	}
+	catch (MalformedPacketException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    static long key(int localPort, int remoteLink, int remotePort) {
+	return ((long) localPort << 16) | (remoteLink << 8) | remotePort;
+    }
+
+    private PostOffice postOffice;
+
+    /** Protects every connection and the transport's tables. */
+    Lock lock;
+    private Condition2 outstanding;
+
+    private HashMap<Long,Connection> connections =
+	new HashMap<Long,Connection>();
+    /** The most recently finished connections, oldest first. */
+    private LinkedHashSet<Long> closed = new LinkedHashSet<Long>();
+    /** Connection requests not yet accepted, by local port. */
+    private HashMap<Integer,LinkedList<Connection>> pending =
+	new HashMap<Integer,LinkedList<Connection>>();
+
+    /** The most data messages a connection has unacknowledged. */
+    int windowSize;
+    /** The longest time to wait for an acknowledgement, in ticks. */
+    int retransmitTimeout;
+
+    int numConnections = 0;
+    int numDataSent = 0, numRetransmitted = 0, numFastRetransmits = 0;
+    int numWindowProbes = 0;
+    int numBytesDelivered = 0;
+
+    /** The most connection requests queued on a port. */
+    private static final int maxPending = 16;
+    /** The most finished connections remembered. */
+    private static final int maxClosed = 64;
+
+    static final int flagSyn = 0x1, flagAck = 0x2, flagData = 0x4,
+	flagFin = 0x8;
+
+    /** The length of the transport header, in bytes. */
+    static final int headerLength = 6;
+    /** The most data a transport message can hold. */
+    static final int maxData = MailMessage.maxContentsLength - headerLength;
+}
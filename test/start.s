@@ -67,3 +67,16 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(shmcreate, syscallShmCreate)
+	SYSCALLSTUB(shmattach, syscallShmAttach)
+	SYSCALLSTUB(futexwait, syscallFutexWait)
+	SYSCALLSTUB(futexwake, syscallFutexWake)
+	SYSCALLSTUB(iosetup, syscallIOSetup)
+	SYSCALLSTUB(ioenter, syscallIOEnter)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(copyfile, syscallCopyFile)
+	SYSCALLSTUB(poll, syscallPoll)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(dup, syscallDup)
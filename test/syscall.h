@@ -25,6 +25,19 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallShmCreate	14
+#define syscallShmAttach	15
+#define syscallFutexWait	16
+#define syscallFutexWake	17
+#define syscallIOSetup		18
+#define syscallIOEnter		19
+#define syscallReadv		20
+#define syscallWritev		21
+#define syscallCopyFile		22
+#define syscallPoll		23
+#define syscallPipe		24
+#define syscallDup		25
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -72,7 +85,9 @@ void exit(int status);
  * Execute the program stored in the specified file, with the specified
  * arguments, in a new child process. The child process has a new unique
  * process ID, and starts with stdin opened as file descriptor 0, and stdout
- * opened as file descriptor 1.
+ * opened as file descriptor 1. These refer to whatever the caller's file
+ * descriptors 0 and 1 refer to, such as the ends of a pipe, or to the
+ * console if the caller has closed them.
  *
  * file is a null-terminated string that specifies the name of the file
  * containing the executable. Note that this string must include the ".coff"
@@ -109,6 +124,21 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a new child process that is a copy of the current process. The child
+ * has a new unique process ID, shares all of the parent's open file
+ * descriptors, and starts executing by returning from fork().
+ *
+ * The child's address space is shared with the parent copy-on-write: pages are
+ * only copied when one of the two processes first writes to them, so the cost
+ * of fork() depends on the pages actually touched afterwards rather than on
+ * the size of the address space.
+ *
+ * fork() returns 0 in the child, and the child's process ID (which can be
+ * passed to join()) in the parent. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -257,6 +287,205 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/**
+ * Create a segment of shared memory at least size bytes long, identified by
+ * key, and map it into the current process. The segment starts out filled
+ * with zeros. Other processes can map the same physical memory with
+ * shmattach(), so data written by one process is immediately visible to the
+ * others, without being copied by the kernel.
+ *
+ * The segment is destroyed when the last process that has it mapped exits.
+ * Segments are not inherited by children created with fork().
+ *
+ * Returns the address at which the segment was mapped, or 0 if an error
+ * occurred (for example, if a segment with this key already exists).
+ */
+char *shmcreate(int key, int size);
+
+/**
+ * Map the existing shared memory segment identified by key into the current
+ * process. The segment may be mapped at a different address than in other
+ * processes.
+ *
+ * Returns the address at which the segment was mapped, or 0 if an error
+ * occurred.
+ */
+char *shmattach(int key);
+
+/**
+ * If the word at address still holds value, sleep until another process calls
+ * futexwake() on the same word. The check and the sleep are atomic, so a wake
+ * cannot be missed. Processes meet on the physical word, so address is
+ * normally in a shared memory segment.
+ *
+ * Returns 0 after being woken, or -1 if the word did not hold value or
+ * address is not a valid, word-aligned address.
+ */
+int futexwait(int *address, int value);
+
+/**
+ * Wake up to count processes sleeping in futexwait() on the word at address.
+ *
+ * Returns the number of processes woken, or -1 if address is not a valid,
+ * word-aligned address.
+ */
+int futexwake(int *address, int count);
+
+/* The layout of the rings used by iosetup() and ioenter(). The rings start
+ * with an io_ring header, followed by the submission entries and then the
+ * completion entries. The kernel advances sq_head and cq_tail; the process
+ * advances sq_tail and cq_head. Entry i of each ring is at index
+ * i & (entries-1).
+ */
+#define IO_READ		0
+#define IO_WRITE	1
+
+struct io_ring {
+    int sq_head, sq_tail;
+    int cq_head, cq_tail;
+};
+
+struct io_sqe {
+    int opcode;		/* IO_READ or IO_WRITE */
+    int fd;
+    void *buffer;
+    int count;
+    int offset;		/* position in the file, or -1 for the current one */
+    int user_data;	/* copied to the completion */
+};
+
+struct io_cqe {
+    int user_data;
+    int result;		/* the number of bytes transferred, or -1 */
+};
+
+#define IO_RING_SIZE(entries) \
+    (sizeof(struct io_ring) + \
+     (entries)*(sizeof(struct io_sqe) + sizeof(struct io_cqe)))
+#define IO_SQE(ring, entries, i) \
+    ((struct io_sqe *) ((ring)+1) + ((i) & ((entries)-1)))
+#define IO_CQE(ring, entries, i) \
+    ((struct io_cqe *) ((struct io_sqe *) ((ring)+1) + (entries)) + \
+     ((i) & ((entries)-1)))
+
+/**
+ * Register the rings at ring, with entries entries in each ring. entries
+ * must be a power of two no larger than 256, and the IO_RING_SIZE(entries)
+ * bytes at ring must be writable. The rings are cleared. A process can
+ * register rings only once, and children created with fork() do not
+ * inherit them.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int iosetup(struct io_ring *ring, int entries);
+
+/**
+ * Submit up to toSubmit entries added to the submission ring since the last
+ * call, then wait until at least minComplete completions are waiting in the
+ * completion ring, or until no submitted requests remain in progress. The
+ * requests are performed by kernel threads while the process continues, and
+ * each posts a completion when it finishes, in any order.
+ *
+ * Fewer entries are submitted if the completion ring could not hold all of
+ * their results, so the process should reap completions before submitting
+ * more. A request with an invalid opcode or file descriptor completes with
+ * a result of -1. Requests that use the current file position of the same
+ * file are performed in the order they were submitted; others may be
+ * performed in any order.
+ *
+ * Returns the number of entries submitted, or -1 if no rings are registered.
+ */
+int ioenter(int toSubmit, int minComplete);
+
+/* One buffer of a readv() or writev() call. */
+struct iovec {
+    void *iov_base;
+    int iov_len;
+};
+
+/**
+ * Like read(), but fill iovcnt buffers in turn, with a single system call.
+ * At most 16 buffers may be given. A buffer is only started once the
+ * previous one has been filled completely.
+ *
+ * Returns the total number of bytes read, or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the contents of iovcnt buffers in turn, with a
+ * single system call. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Copy up to count bytes from the current position of fdIn to fdOut,
+ * advancing both positions. The kernel copies the data directly, so it
+ * never passes through the process's memory. Either descriptor may refer to
+ * a stream.
+ *
+ * Returns the number of bytes copied, which is smaller than count if the
+ * end of fdIn is reached, or -1 if an error occurred.
+ */
+int copyfile(int fdIn, int fdOut, int count);
+
+/* Events for poll(). */
+#define POLLIN		0x001	/* data can be read */
+#define POLLOUT		0x004	/* data can be written */
+#define POLLERR		0x008	/* an error occurred */
+#define POLLHUP		0x010	/* the other end was closed */
+#define POLLNVAL	0x020	/* the file descriptor is not open */
+
+/* A file descriptor for poll(), and the events to wait for on it. */
+struct pollfd {
+    int fd;
+    short events;
+    short revents;	/* set by poll() */
+};
+
+/**
+ * Wait until at least one of the nfds file descriptors in fds is ready for
+ * one of its events, or until timeout ticks have passed. A timeout of 0
+ * returns at once, and a negative timeout waits indefinitely. At most a
+ * page of entries (128) may be given. A descriptor may appear more than
+ * once, and an entry with a negative fd is ignored, with revents set to 0.
+ *
+ * The ready events are stored in revents, along with POLLERR and POLLHUP,
+ * which are reported even if not requested, and POLLNVAL for a descriptor
+ * that is not open. Files on disk are always ready.
+ *
+ * Returns the number of descriptors with revents set, which is 0 if the
+ * timeout expired, or -1 if an error occurred.
+ */
+int poll(struct pollfd *fds, int nfds, int timeout);
+
+/**
+ * Create a pipe, a one-way channel with a buffer of 4096 bytes, and store
+ * file descriptors for its read end in fds[0] and its write end in fds[1].
+ *
+ * Unlike other streams, a pipe blocks. read() waits until some data is
+ * available, and returns 0 once the pipe is empty and every descriptor for
+ * the write end has been closed. write() waits until all of its data has
+ * been buffered or read, and returns -1 once every descriptor for the read
+ * end has been closed. The ends are inherited by children created with
+ * fork(), and a child created with exec() inherits file descriptors 0 and
+ * 1, so a shell connects two programs by making the ends of a pipe those
+ * descriptors with dup() before each exec().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int fds[2]);
+
+/**
+ * Return the lowest file descriptor not in use, made to refer to the same
+ * file or stream as fileDescriptor.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int dup(int fileDescriptor);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
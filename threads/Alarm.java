@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import java.util.Iterator;
 import java.util.PriorityQueue;
 
 /**
@@ -63,6 +64,41 @@ public class Alarm {
         Machine.interrupt().enable();
     }
     
+    /**
+     * Arrange for a thread that is about to sleep to be woken up by the timer
+     * interrupt handler at <i>wakeTime</i>, unless the wakeup is cancelled
+     * first. Called with interrupts disabled.
+     *
+     * @param	thread		the thread to wake up.
+     * @param	wakeTime	the time at which to wake it.
+     */
+    public void addWakeup(KThread thread, long wakeTime) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	waitQueue.add(new SleepingThread(thread, wakeTime));
+    }
+
+    /**
+     * Cancel a wakeup arranged by <tt>addWakeup()</tt>. Called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread.
+     * @return	<tt>true</tt> if the wakeup was cancelled, or <tt>false</tt>
+     *		if the thread has already been woken up.
+     */
+    public boolean cancelWakeup(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (Iterator<SleepingThread> i=waitQueue.iterator(); i.hasNext(); ) {
+	    if (i.next().getThread() == thread) {
+		i.remove();
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
     /**
      * Put the current thread to sleep for at least <i>x</i> ticks
      * using busy waiting. The thread must be woken up (placed in 
@@ -115,7 +151,7 @@ public class Alarm {
      */
     public static void selfTest() {
         System.out.println("------------------Testing Alarm--------------------");
-        final Alarm TestAlarm = new Alarm();
+        final Alarm TestAlarm = ThreadedKernel.alarm;
         System.out.println("TEST 1: Creating test thread, thread will wait for 0 then 2000 ticks, finish time should always be larger than start time + wait time."); 
         KThread TestThread = new KThread();
         TestThread.setName("Test Thread 0");
@@ -0,0 +1,862 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * A file system that keeps a fixed number of file blocks cached in kernel
+ * memory in front of the stub file system, whose every read and write waits
+ * for a simulated disk access. Select it by setting
+ * <tt>ThreadedKernel.fileSystem</tt> to <tt>nachos.threads.CachedFileSystem</tt>;
+ * <tt>CachedFileSystem.numBlocks</tt> sets the size of the cache.
+ *
+ * <p>
+ * Blocks are replaced using the 2Q algorithm. A block read for the first
+ * time enters a FIFO queue, <i>A1in</i>, and a block evicted from it is only
+ * remembered in a ghost queue, <i>A1out</i>. A block referenced again while
+ * it is remembered there enters the main LRU queue, <i>Am</i>. A file read
+ * once from start to end, such as an executable being loaded, therefore
+ * cannot push the blocks used repeatedly out of the cache.
+ *
+ * <p>
+ * Writes only modify the cached blocks. Dirty blocks are written back when
+ * they are evicted, when the last open instance of their file is closed,
+ * and when the kernel terminates, and consecutive dirty blocks of a file are
+ * written back with a single write.
+ *
+ * <p>
+ * Each open file watches for sequential access. A read that continues where
+ * the last one ended asks a kernel I/O thread to read the next
+ * <tt>CachedFileSystem.readAheadBlocks</tt> blocks into the cache, with a
+ * single read. A sequential writer hands every
+ * <tt>CachedFileSystem.writeBehindBlocks</tt> completed blocks to the same
+ * thread to be written back in one batch, and does not wait for them. A
+ * block being read cannot be used until the read finishes, and a block
+ * being written back cannot be evicted. The cache's lock is released while
+ * the stub file system reads or writes, so a miss does not hold up the hits
+ * of other threads.
+ *
+ * <p>
+ * A file removed while it is open keeps its cached blocks until its last
+ * close, and a new file created under the same name has blocks of its own.
+ *
+ * <p>
+ * Opening a file through the stub file system also waits for a disk
+ * access, so the most recently used names are remembered as well, up to
+ * <tt>CachedFileSystem.numNames</tt> of them. A file keeps its backing file
+ * open after its last close while its name is remembered, so opening it
+ * again costs nothing, and a name that does not exist is remembered as a
+ * negative entry, so looking it up again fails at once.
+ */
+public class CachedFileSystem implements FlushableFileSystem {
+    /**
+     * Allocate a new cached file system in front of the stub file system.
+     */
+    public CachedFileSystem() {
+	backingFileSystem = Machine.stubFileSystem();
+	Lib.assertTrue(backingFileSystem != null);
+
+	numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+	Lib.assertTrue(numBlocks >= 4);
+
+	// the sizes recommended by the 2Q paper
+	maxA1inBlocks = numBlocks/4;
+	maxA1outBlocks = numBlocks/2;
+
+	readAheadBlocks =
+	    Config.getInteger("CachedFileSystem.readAheadBlocks", 4);
+	writeBehindBlocks =
+	    Config.getInteger("CachedFileSystem.writeBehindBlocks", 8);
+	Lib.assertTrue(readAheadBlocks >= 0 && readAheadBlocks < numBlocks/2);
+	Lib.assertTrue(writeBehindBlocks >= 0);
+
+	numNames = Config.getInteger("CachedFileSystem.numNames", 8);
+	Lib.assertTrue(numNames >= 0);
+
+	lock = new Lock();
+	ioRequested = new Condition2(lock);
+	ioDone = new Condition2(lock);
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	CachedFile file = openFiles.get(name);
+
+	if (create) {
+	    // an open file's blocks must be idle before it is truncated
+	    while (file != null && !file.removed && isBusy(file)) {
+		ioDone.sleep();
+		file = openFiles.get(name);
+	    }
+
+	    // the stub file system truncates a file it opens to create
+	    OpenFile backingFile = backingFileSystem.open(name, true);
+	    if (backingFile == null) {
+		lock.release();
+		return null;
+	    }
+
+	    forgetName(name);
+
+	    if (file != null && !file.removed) {
+		dropBlocks(file);
+		backingFile.close();
+		file.length = 0;
+	    }
+	    else {
+		// a removed file stays with the processes that have it open
+		file = new CachedFile(name, backingFile);
+	    }
+	}
+	else if (file == null) {
+	    file = lookupName(name);
+	    if (file == null) {
+		lock.release();
+		return null;
+	    }
+	}
+
+	openFiles.put(name, file);
+	file.openCount++;
+	file.released = false;
+
+	lock.release();
+	return new CachedOpenFile(file);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	CachedFile file = openFiles.get(name);
+
+	forgetName(name);
+	boolean removed = backingFileSystem.remove(name);
+
+	// an open file keeps its blocks, and can still be opened by name,
+	// until it is closed
+	if (removed) {
+	    if (file != null)
+		file.removed = true;
+	    else
+		rememberName(name, null);
+	}
+
+	lock.release();
+	return removed;
+    }
+
+    /**
+     * Write every dirty block back to its file.
+     */
+    public void flush() {
+	lock.acquire();
+
+	for (CachedFile file : openFiles.values().toArray(new CachedFile[0]))
+	    writeBack(file);
+
+	lock.release();
+    }
+
+    /**
+     * Print the cache statistics.
+     */
+    public void print() {
+	System.out.println("Buffer cache: hits " + numHits + ", misses "
+			   + numMisses + ", blocks written back "
+			   + numBlocksWritten + " in " + numWrites + " writes"
+			   + ", read ahead " + numReadAheadHits + "/"
+			   + numReadAhead);
+	System.out.println("Name cache: hits " + numNameHits
+			   + ", negative hits " + numNegativeHits
+			   + ", misses " + numNameMisses);
+    }
+
+    /**
+     * Find a file that is not open by name, first among the remembered
+     * names, and otherwise by opening it through the stub file system. The
+     * caller must hold <tt>lock</tt>.
+     *
+     * @param	name	the name of the file.
+     * @return	the file, or <tt>null</tt> if it does not exist.
+     */
+    private CachedFile lookupName(String name) {
+	if (names.containsKey(name)) {
+	    CachedFile file = names.remove(name);
+	    if (file == null) {
+		numNegativeHits++;
+		names.put(name, null);
+	    }
+	    else {
+		numNameHits++;
+	    }
+	    return file;
+	}
+
+	numNameMisses++;
+
+	OpenFile backingFile = backingFileSystem.open(name, false);
+	if (backingFile == null) {
+	    rememberName(name, null);
+	    return null;
+	}
+
+	return new CachedFile(name, backingFile);
+    }
+
+    /**
+     * Remember a name, and the file it refers to, or <tt>null</tt> if it
+     * does not exist. Forgets the least recently used name if there are too
+     * many. The caller must hold <tt>lock</tt>.
+     */
+    private void rememberName(String name, CachedFile file) {
+	forgetName(name);
+
+	if (numNames == 0) {
+	    if (file != null)
+		file.backingFile.close();
+	    return;
+	}
+
+	names.put(name, file);
+
+	if (names.size() > numNames) {
+	    Iterator<String> eldest = names.keySet().iterator();
+	    forgetName(eldest.next());
+	}
+    }
+
+    /**
+     * Forget a remembered name, closing its backing file. The caller must
+     * hold <tt>lock</tt>.
+     */
+    private void forgetName(String name) {
+	CachedFile file = names.remove(name);
+	if (file != null)
+	    file.backingFile.close();
+    }
+
+    /**
+     * Return the number of block references that found the block cached.
+     *
+     * @return	the number of cache hits.
+     */
+    public int getHits() {
+	return numHits;
+    }
+
+    /**
+     * Return the number of block references that had to read the block.
+     *
+     * @return	the number of cache misses.
+     */
+    public int getMisses() {
+	return numMisses;
+    }
+
+    /**
+     * Return the cached block of a file, reading it into the cache if
+     * necessary. Waits for the block if the I/O thread is reading it. The
+     * caller must hold <tt>lock</tt>.
+     *
+     * @param	file	the file.
+     * @param	number	the block number.
+     * @param	fill	<tt>false</tt> if the caller will overwrite the whole
+     *			block, so it need not be read.
+     * @return	the block.
+     */
+    private Block getBlock(CachedFile file, int number, boolean fill) {
+	Block block;
+	while ((block = lookupBlock(file, number)) != null && block.busy)
+	    ioDone.sleep();
+
+	if (block != null) {
+	    numHits++;
+	    if (block.readAhead) {
+		block.readAhead = false;
+		numReadAheadHits++;
+	    }
+	    return block;
+	}
+
+	numMisses++;
+
+	// others wait for the block while room is made for it
+	block = addBlock(file, number);
+	if (a1in.size() + am.size() > numBlocks)
+	    evictBlock();
+
+	// a short read leaves the rest of the block zero
+	if (fill && number*blockSize < file.length) {
+	    lock.release();
+	    file.backingFile.read(number*blockSize, block.data, 0, blockSize);
+	    lock.acquire();
+	}
+
+	block.busy = false;
+	ioDone.wakeAll();
+
+	return block;
+    }
+
+    /**
+     * Add a new block, which stays busy until the caller fills it, to the
+     * queue chosen by 2Q. The caller must hold <tt>lock</tt>.
+     */
+    private Block addBlock(CachedFile file, int number) {
+	String key = blockKey(file, number);
+	Block block = new Block(file, number);
+
+	if (a1out.remove(key))
+	    am.put(key, block);
+	else
+	    a1in.put(key, block);
+
+	return block;
+    }
+
+    /**
+     * Evict one block, writing it back first if it is dirty. Blocks the I/O
+     * thread is using are skipped. The caller must hold <tt>lock</tt>.
+     *
+     * @return	<tt>true</tt> if a block was evicted.
+     */
+    private boolean evictBlock() {
+	while (true) {
+	    LinkedHashMap<String,Block> queue =
+		(a1in.size() > maxA1inBlocks) ? a1in : am;
+
+	    Block victim = chooseVictim(queue);
+	    if (victim == null) {
+		queue = (queue == a1in) ? am : a1in;
+		victim = chooseVictim(queue);
+	    }
+	    if (victim == null)
+		return false;
+
+	    // writing back may sleep, so the choice must be made again
+	    if (victim.dirty) {
+		writeBack(victim.file, victim.number);
+		continue;
+	    }
+
+	    String key = blockKey(victim.file, victim.number);
+	    queue.remove(key);
+
+	    if (queue == a1in) {
+		a1out.add(key);
+		if (a1out.size() > maxA1outBlocks)
+		    a1out.removeFirst();
+	    }
+
+	    return true;
+	}
+    }
+
+    private Block chooseVictim(LinkedHashMap<String,Block> queue) {
+	for (Block block : queue.values()) {
+	    if (!block.busy && !block.writing)
+		return block;
+	}
+
+	return null;
+    }
+
+    /**
+     * Write back the run of consecutive dirty blocks of a file containing
+     * the specified block, with a single write. Waits first for other reads
+     * and writes of the file's blocks to finish, so an older write cannot
+     * land after this one. The caller must hold <tt>lock</tt>.
+     */
+    private void writeBack(CachedFile file, int number) {
+	while (file.numPendingIO > 0)
+	    ioDone.sleep();
+
+	if (!isDirty(file, number))
+	    return;
+
+	int first = number, last = number;
+	while (first > 0 && isDirty(file, first-1))
+	    first--;
+	while (isDirty(file, last+1))
+	    last++;
+
+	writeBlocks(file, first, last);
+    }
+
+    /**
+     * Copy a run of dirty blocks into one buffer for writing back, and mark
+     * them clean.
+     *
+     * @return	the buffer, or <tt>null</tt> if the blocks lie beyond the end
+     *		of the file, which has been truncated.
+     */
+    private byte[] collectDirtyBlocks(CachedFile file, int first, int last) {
+	byte[] buffer = new byte[(last-first+1)*blockSize];
+	for (int i=first; i<=last; i++) {
+	    Block block = lookupBlock(file, i);
+	    System.arraycopy(block.data, 0, buffer, (i-first)*blockSize,
+			     blockSize);
+	    block.dirty = false;
+	}
+
+	if (first*blockSize >= file.length)
+	    return null;
+
+	numWrites++;
+	numBlocksWritten += last-first+1;
+	return buffer;
+    }
+
+    /**
+     * Queue a request for the I/O thread, starting the thread the first time.
+     * The caller must hold <tt>lock</tt>.
+     */
+    private void requestIO(CachedFile file, int block, int count,
+			   boolean write) {
+	if (ioThread == null) {
+	    ioThread = new KThread(new Runnable() {
+		    public void run() { runIOThread(); }
+		});
+	    ioThread.setName("block I/O").fork();
+	}
+
+	ioQueue.add(new IORequest(file, block, count, write));
+	ioRequested.wake();
+    }
+
+    /**
+     * The body of the I/O thread, which serves read-ahead and write-behind
+     * requests in order. The thread gives up <tt>lock</tt> while it waits
+     * for the stub file system.
+     */
+    private void runIOThread() {
+	lock.acquire();
+
+	while (true) {
+	    while (ioQueue.isEmpty())
+		ioRequested.sleep();
+
+	    IORequest request = ioQueue.removeFirst();
+
+	    // the file was closed since the request was made
+	    if (request.file.openCount == 0)
+		continue;
+
+	    if (request.write)
+		writeBehind(request.file, request.block);
+	    else
+		readAhead(request.file, request.block, request.count);
+	}
+    }
+
+    /**
+     * Read the uncached blocks among the specified ones into the cache, with
+     * a single read of the first run of them. Called by the I/O thread with
+     * <tt>lock</tt> held.
+     */
+    private void readAhead(CachedFile file, int first, int count) {
+	int end = Math.min(first+count,
+			   (file.length + blockSize-1) / blockSize);
+
+	while (first < end && lookupBlock(file, first) != null)
+	    first++;
+
+	LinkedList<Block> blocks = new LinkedList<Block>();
+	for (int i=first; i<end && lookupBlock(file, i) == null; i++) {
+	    if (a1in.size() + am.size() >= numBlocks && !evictBlock())
+		break;
+	    // evicting may sleep, letting another thread read the block
+	    if (lookupBlock(file, i) != null)
+		break;
+
+	    blocks.add(addBlock(file, i));
+	}
+
+	if (blocks.isEmpty())
+	    return;
+
+	byte[] buffer = new byte[blocks.size()*blockSize];
+
+	file.numPendingIO++;
+	lock.release();
+	file.backingFile.read(first*blockSize, buffer, 0, buffer.length);
+	lock.acquire();
+	file.numPendingIO--;
+
+	int i = 0;
+	for (Block block : blocks) {
+	    System.arraycopy(buffer, i++*blockSize, block.data, 0, blockSize);
+	    block.busy = false;
+	    block.readAhead = true;
+	}
+
+	numReadAhead += blocks.size();
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Write back the run of consecutive dirty blocks starting at the
+     * specified one. Called by the I/O thread with <tt>lock</tt> held.
+     */
+    private void writeBehind(CachedFile file, int first) {
+	int last = first-1;
+	while (isDirty(file, last+1) && !lookupBlock(file, last+1).writing)
+	    last++;
+
+	if (last < first)
+	    return;
+
+	writeBlocks(file, first, last);
+    }
+
+    /**
+     * Write a run of dirty blocks back with a single write, without holding
+     * <tt>lock</tt> while the stub file system writes. The caller must hold
+     * <tt>lock</tt>.
+     */
+    private void writeBlocks(CachedFile file, int first, int last) {
+	byte[] buffer = collectDirtyBlocks(file, first, last);
+	if (buffer == null)
+	    return;
+
+	// the blocks may be written again meanwhile, but not evicted
+	for (int i=first; i<=last; i++)
+	    lookupBlock(file, i).writing = true;
+
+	int length = Math.min(buffer.length, file.length - first*blockSize);
+
+	file.numPendingIO++;
+	lock.release();
+	file.backingFile.write(first*blockSize, buffer, 0, length);
+	lock.acquire();
+	file.numPendingIO--;
+
+	for (int i=first; i<=last; i++) {
+	    Block block = lookupBlock(file, i);
+	    if (block != null)
+		block.writing = false;
+	}
+
+	ioDone.wakeAll();
+    }
+
+    /**
+     * Write back every dirty block of a file. The caller must hold
+     * <tt>lock</tt>.
+     */
+    private void writeBack(CachedFile file) {
+	int numFileBlocks = (file.length + blockSize-1) / blockSize;
+
+	for (int i=0; i<numFileBlocks; i++) {
+	    if (isDirty(file, i))
+		writeBack(file, i);
+	}
+    }
+
+    /**
+     * Give up a file after its last close. A removed file loses its blocks
+     * and its backing file, and any other file's name is remembered. The
+     * caller must hold <tt>lock</tt>.
+     */
+    private void release(CachedFile file) {
+	file.released = true;
+
+	if (openFiles.get(file.name) == file)
+	    openFiles.remove(file.name);
+
+	if (file.removed) {
+	    dropBlocks(file);
+	    file.backingFile.close();
+	}
+	else {
+	    rememberName(file.name, file);
+	}
+    }
+
+    /**
+     * Test whether any block of a file is being read or written. The caller
+     * must hold <tt>lock</tt>.
+     */
+    private boolean isBusy(CachedFile file) {
+	return file.numPendingIO > 0 || hasBusyBlock(file, a1in) ||
+	    hasBusyBlock(file, am);
+    }
+
+    private boolean hasBusyBlock(CachedFile file,
+				 LinkedHashMap<String,Block> queue) {
+	for (Block block : queue.values()) {
+	    if (block.file == file && (block.busy || block.writing))
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Drop every cached block of a file, including dirty ones. No block may
+     * be busy. The caller must hold <tt>lock</tt>.
+     */
+    private void dropBlocks(CachedFile file) {
+	dropBlocks(file, a1in);
+	dropBlocks(file, am);
+    }
+
+    private void dropBlocks(CachedFile file, LinkedHashMap<String,Block> queue) {
+	for (Iterator<Block> i=queue.values().iterator(); i.hasNext(); ) {
+	    if (i.next().file == file)
+		i.remove();
+	}
+    }
+
+    /**
+     * Find a cached block without counting a hit or a miss.
+     */
+    private Block lookupBlock(CachedFile file, int number) {
+	String key = blockKey(file, number);
+
+	Block block = am.get(key);
+	return (block != null) ? block : a1in.get(key);
+    }
+
+    private boolean isDirty(CachedFile file, int number) {
+	Block block = lookupBlock(file, number);
+	return block != null && block.dirty;
+    }
+
+    /**
+     * Blocks are keyed by file rather than by name, so a file removed while
+     * it is open and a new file with its name do not share blocks.
+     */
+    private static String blockKey(CachedFile file, int number) {
+	return file.id + "/" + number;
+    }
+
+    /**
+     * The state shared by every open instance of a file: its length, which
+     * may be ahead of the backing file's, and a single backing file used to
+     * fill and write back its blocks.
+     */
+    private class CachedFile {
+	CachedFile(String name, OpenFile backingFile) {
+	    this.name = name;
+	    this.backingFile = backingFile;
+	    length = backingFile.length();
+	    id = numFilesCached++;
+	}
+
+	String name;
+	OpenFile backingFile;
+	int length;
+	int id;
+	int openCount = 0;
+	/** Removed from the stub file system while open. */
+	boolean removed = false;
+	/** Given up by its last close. */
+	boolean released = false;
+	/** The number of reads and writes the I/O thread has in progress. */
+	int numPendingIO = 0;
+    }
+
+    private static class Block {
+	Block(CachedFile file, int number) {
+	    this.file = file;
+	    this.number = number;
+	}
+
+	CachedFile file;
+	int number;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false;
+	/** Being read, and not yet filled. */
+	boolean busy = true;
+	/** Being written back by the I/O thread. */
+	boolean writing = false;
+	/** Read ahead, and not referenced since. */
+	boolean readAhead = false;
+    }
+
+    private static class IORequest {
+	IORequest(CachedFile file, int block, int count, boolean write) {
+	    this.file = file;
+	    this.block = block;
+	    this.count = count;
+	    this.write = write;
+	}
+
+	CachedFile file;
+	int block;
+	int count;
+	boolean write;
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(CachedFile file) {
+	    super(CachedFileSystem.this, file.name);
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+
+	    int amount = 0;
+	    length = Math.max(0, Math.min(length, file.length - pos));
+
+	    while (amount < length) {
+		int blockOffset = (pos+amount) % blockSize;
+		int chunk = Math.min(length-amount, blockSize-blockOffset);
+
+		Block block = getBlock(file, (pos+amount) / blockSize, true);
+		System.arraycopy(block.data, blockOffset, buf, offset+amount,
+				 chunk);
+		amount += chunk;
+	    }
+
+	    // a read continuing the last one triggers read-ahead
+	    if (pos != nextReadPosition)
+		readAheadBlock = 0;
+	    else if (amount > 0 && readAheadBlocks > 0) {
+		int next = (pos+amount + blockSize-1) / blockSize;
+		int start = Math.max(next, readAheadBlock);
+		if (start < next+readAheadBlocks) {
+		    requestIO(file, start, next+readAheadBlocks - start, false);
+		    readAheadBlock = next+readAheadBlocks;
+		}
+	    }
+	    nextReadPosition = pos+amount;
+
+	    lock.release();
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    lock.acquire();
+
+	    int amount = 0;
+	    while (amount < length) {
+		int blockOffset = (pos+amount) % blockSize;
+		int chunk = Math.min(length-amount, blockSize-blockOffset);
+
+		Block block = getBlock(file, (pos+amount) / blockSize,
+				       chunk < blockSize);
+		System.arraycopy(buf, offset+amount, block.data, blockOffset,
+				 chunk);
+		block.dirty = true;
+		amount += chunk;
+	    }
+
+	    file.length = Math.max(file.length, pos+length);
+
+	    // hand completed blocks of a sequential write to the I/O thread
+	    int end = (pos+length) / blockSize;
+	    if (pos != nextWritePosition)
+		writeBehindBlock = pos / blockSize;
+	    if (writeBehindBlocks > 0 &&
+		end - writeBehindBlock >= writeBehindBlocks) {
+		requestIO(file, writeBehindBlock, end - writeBehindBlock, true);
+		writeBehindBlock = end;
+	    }
+	    nextWritePosition = pos+length;
+
+	    lock.release();
+	    return amount;
+	}
+
+	public int length() {
+	    return (file == null) ? -1 : file.length;
+	}
+
+	public void close() {
+	    if (file == null)
+		return;
+
+	    lock.acquire();
+
+	    // the I/O thread ignores requests for a file once it is closed
+	    if (--file.openCount == 0) {
+		if (!file.removed) {
+		    writeBack(file);
+		}
+		else {
+		    while (isBusy(file))
+			ioDone.sleep();
+		}
+
+		// the file may have been opened again while this thread slept
+		if (file.openCount == 0 && !file.released)
+		    release(file);
+	    }
+	    file = null;
+
+	    lock.release();
+	}
+
+	private CachedFile file;
+
+	/** Where a read must start to continue a sequential scan. */
+	private int nextReadPosition = 0;
+	/** The first block not yet requested for read-ahead. */
+	private int readAheadBlock = 0;
+	/** Where a write must start to continue a sequential write. */
+	private int nextWritePosition = 0;
+	/** The first block not yet handed to the I/O thread to write. */
+	private int writeBehindBlock = 0;
+    }
+
+    private FileSystem backingFileSystem;
+    private Lock lock;
+    /** Signalled when a request is queued for the I/O thread. */
+    private Condition2 ioRequested;
+    /** Signalled when a block finishes being read or written. */
+    private Condition2 ioDone;
+
+    private KThread ioThread = null;
+    private LinkedList<IORequest> ioQueue = new LinkedList<IORequest>();
+    private int readAheadBlocks;
+    private int writeBehindBlocks;
+
+    private int numBlocks;
+    private int maxA1inBlocks;
+    private int maxA1outBlocks;
+
+    private HashMap<String,CachedFile> openFiles =
+	new HashMap<String,CachedFile>();
+
+    private int numNames;
+    /** Files that are not open, by name in LRU order; null if missing. */
+    private LinkedHashMap<String,CachedFile> names =
+	new LinkedHashMap<String,CachedFile>(16, 0.75f, true);
+
+    /** Blocks referenced once, in FIFO order. */
+    private LinkedHashMap<String,Block> a1in =
+	new LinkedHashMap<String,Block>();
+    /** Blocks referenced again after leaving <i>A1in</i>, in LRU order. */
+    private LinkedHashMap<String,Block> am =
+	new LinkedHashMap<String,Block>(16, 0.75f, true);
+    /** The keys of blocks recently evicted from <i>A1in</i>. */
+    private LinkedList<String> a1out = new LinkedList<String>();
+
+    private int numFilesCached = 0;
+
+    private int numHits = 0;
+    private int numMisses = 0;
+    private int numWrites = 0;
+    private int numBlocksWritten = 0;
+    private int numReadAhead = 0;
+    private int numReadAheadHits = 0;
+    private int numNameHits = 0;
+    private int numNegativeHits = 0;
+    private int numNameMisses = 0;
+
+    private static final int blockSize = 1024;
+}
@@ -0,0 +1,20 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A file system that holds updates in memory, and so must be flushed before
+ * the machine halts. <tt>ThreadedKernel.terminate()</tt> flushes the kernel's
+ * file system, and prints its statistics, if it is one of these.
+ */
+public interface FlushableFileSystem extends FileSystem {
+    /**
+     * Write every update held in memory to the underlying storage.
+     */
+    public void flush();
+
+    /**
+     * Print this file system's statistics.
+     */
+    public void print();
+}
@@ -71,6 +71,11 @@ public class ThreadedKernel extends Kernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (fileSystem instanceof FlushableFileSystem) {
+	    ((FlushableFileSystem) fileSystem).flush();
+	    ((FlushableFileSystem) fileSystem).print();
+	}
+
 	Machine.halt();
     }
 
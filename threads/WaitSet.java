@@ -0,0 +1,75 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A wait set lets one thread wait for any of several event sources at once.
+ * The thread registers the wait set with each source, then calls
+ * <tt>await()</tt>; a source calls <tt>signal()</tt> whenever its state
+ * changes. A signal that arrives before the wait is not lost: the next
+ * <tt>await()</tt> returns at once.
+ *
+ * <p>
+ * Since <tt>signal()</tt> only disables interrupts, it may be called from
+ * interrupt handlers.
+ */
+public class WaitSet {
+    /**
+     * Allocate a new wait set.
+     */
+    public WaitSet() {
+    }
+
+    /**
+     * Wait until the wait set is signalled, or until <i>timeout</i> ticks
+     * have passed.
+     *
+     * @param	timeout	the most ticks to wait, or -1 to wait indefinitely.
+     * @return	<tt>true</tt> if the wait set was signalled, or <tt>false</tt>
+     *		if the wait timed out.
+     */
+    public boolean await(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!signalled && timeout != 0) {
+	    waiter = KThread.currentThread();
+	    timed = (timeout > 0);
+	    if (timed) {
+		ThreadedKernel.alarm.addWakeup(waiter,
+					       Machine.timer().getTime()
+					       + timeout);
+	    }
+
+	    KThread.sleep();
+	    waiter = null;
+	}
+
+	boolean result = signalled;
+	signalled = false;
+
+	Machine.interrupt().restore(intStatus);
+	return result;
+    }
+
+    /**
+     * Signal the wait set, waking up the thread waiting on it, if any.
+     */
+    public void signal() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	signalled = true;
+
+	if (waiter != null) {
+	    // a timed wait may already have been ended by the alarm
+	    if (!timed || ThreadedKernel.alarm.cancelWakeup(waiter))
+		waiter.ready();
+	    waiter = null;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private boolean signalled = false;
+    private KThread waiter = null;
+    private boolean timed;
+}
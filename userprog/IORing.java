@@ -0,0 +1,350 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A pair of rings in a process's memory through which it submits file
+ * requests and collects their results, without waiting for each request.
+ * A pool of kernel I/O worker threads performs the requests, so a process
+ * can keep many of them in progress while it continues to compute.
+ *
+ * <p>
+ * The rings start with four words: the head and tail of the submission
+ * ring, then the head and tail of the completion ring. The process advances
+ * the submission tail and the completion head, and the kernel the other
+ * two. The header is followed by the submission entries, each six words
+ * (opcode, file descriptor, buffer, count, offset, user data), and then by
+ * the completion entries, each two words (user data, result). A request
+ * with an offset of -1 uses the file's current position; requests of this
+ * kind on the same file are performed one at a time, in the order they
+ * were submitted.
+ *
+ * <p>
+ * The kernel never has more requests in progress than there is room for
+ * their completions, so the completion ring cannot overflow.
+ */
+class IORing {
+    private IORing(UserProcess process, int address, int entries) {
+	this.process = process;
+	this.address = address;
+	this.entries = entries;
+
+	completed = new Condition2(lock);
+    }
+
+    /**
+     * Register a process's rings, which must be writable.
+     *
+     * @param	process	the process.
+     * @param	address	the virtual address of the rings.
+     * @param	entries	the number of entries in each ring, a power of two no
+     *			larger than <tt>maxEntries</tt>.
+     * @return	the rings, or <tt>null</tt> if the arguments are invalid.
+     */
+    static IORing create(UserProcess process, int address, int entries) {
+	if (entries <= 0 || entries > maxEntries ||
+	    (entries & (entries-1)) != 0 || address % 4 != 0)
+	    return null;
+
+	int size = headerSize + entries*(sqEntrySize+cqEntrySize);
+	if (process.writeVirtualMemory(address, new byte[size]) != size)
+	    return null;
+
+	if (workers == null)
+	    startWorkers();
+
+	return new IORing(process, address, entries);
+    }
+
+    /**
+     * Submit up to <i>toSubmit</i> new entries from the submission ring, then
+     * wait until at least <i>minComplete</i> completions are waiting to be
+     * reaped, or until no submitted requests remain in progress.
+     *
+     * @param	toSubmit	the most entries to submit.
+     * @param	minComplete	the number of completions to wait for.
+     * @return	the number of entries submitted, or -1 on error.
+     */
+    int enter(int toSubmit, int minComplete) {
+	if (toSubmit < 0 || minComplete < 0)
+	    return -1;
+
+	lock.acquire();
+
+	int sqTail = readWord(sqTailOffset);
+	int submitted = 0;
+	byte[] entry = new byte[sqEntrySize];
+
+	while (submitted < toSubmit && sqHead != sqTail) {
+	    // leave room in the completion ring for every request in progress
+	    if (numInFlight + (cqTail - readWord(cqHeadOffset)) >= entries)
+		break;
+
+	    int offset = headerSize + (sqHead & (entries-1))*sqEntrySize;
+	    if (process.readVirtualMemory(address+offset, entry) != sqEntrySize)
+		break;
+
+	    sqHead++;
+	    submitted++;
+	    submit(entry);
+	}
+
+	writeWord(sqHeadOffset, sqHead);
+
+	while (numInFlight > 0 &&
+	       cqTail - readWord(cqHeadOffset) < minComplete)
+	    completed.sleep();
+
+	lock.release();
+
+	return submitted;
+    }
+
+    /**
+     * Wait until every submitted request has completed. Called when the
+     * process exits, before its memory and files are released.
+     */
+    void drain() {
+	lock.acquire();
+
+	while (numInFlight > 0)
+	    completed.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * Print the number of asynchronous requests and their latencies, if any
+     * process used the rings.
+     */
+    static void print() {
+	if (workers == null)
+	    return;
+
+	System.out.println("Async I/O: " + workers.length + " workers, requests "
+			   + numRequests + ", max in flight " + maxInFlight
+			   + ", latency avg "
+			   + (numRequests == 0 ? 0 : totalLatency/numRequests)
+			   + " ticks");
+    }
+
+    private void submit(byte[] entry) {
+	Request request = new Request(this, entry);
+	OpenFile file = process.getFile(request.fd);
+
+	if ((request.opcode != opRead && request.opcode != opWrite) ||
+	    file == null || request.count < 0 || request.offset < -1) {
+	    complete(request, -1);
+	    return;
+	}
+
+	request.file = file;
+	UserProcess.referenceFile(file);
+
+	numInFlight++;
+	totalInFlight++;
+	maxInFlight = Math.max(maxInFlight, totalInFlight);
+
+	queue.add(request);
+	requestQueued.wake();
+    }
+
+    /**
+     * Post a request's result to the completion ring. Called with the lock
+     * held.
+     */
+    private void complete(Request request, int result) {
+	byte[] entry = new byte[cqEntrySize];
+	Lib.bytesFromInt(entry, 0, request.userData);
+	Lib.bytesFromInt(entry, 4, result);
+
+	int offset = headerSize + entries*sqEntrySize
+	    + (cqTail & (entries-1))*cqEntrySize;
+	process.writeVirtualMemory(address+offset, entry);
+
+	cqTail++;
+	writeWord(cqTailOffset, cqTail);
+
+	completed.wakeAll();
+    }
+
+    private int readWord(int offset) {
+	byte[] word = new byte[4];
+	process.readVirtualMemory(address+offset, word);
+	return Lib.bytesToInt(word, 0);
+    }
+
+    private void writeWord(int offset, int value) {
+	process.writeVirtualMemory(address+offset, Lib.bytesFromInt(value));
+    }
+
+    private static void startWorkers() {
+	lock = new Lock();
+	requestQueued = new Condition2(lock);
+
+	workers = new KThread[Config.getInteger("IORing.numWorkers", 4)];
+	for (int i=0; i<workers.length; i++) {
+	    workers[i] = new KThread(new Runnable() {
+		    public void run() { serviceRequests(); }
+		});
+	    workers[i].setName("I/O worker #" + i);
+	    workers[i].fork();
+	}
+    }
+
+    /**
+     * The body of an I/O worker thread. Performs queued requests, without
+     * holding the lock, and posts their results.
+     */
+    private static void serviceRequests() {
+	lock.acquire();
+
+	while (true) {
+	    Request request;
+	    while ((request = nextRequest()) == null)
+		requestQueued.sleep();
+
+	    boolean stream = (request.offset == -1);
+	    if (stream)
+		streamsInUse.add(request.file);
+
+	    lock.release();
+	    int result = request.perform();
+	    UserProcess.closeFile(request.file);
+	    lock.acquire();
+
+	    if (stream) {
+		streamsInUse.remove(request.file);
+		requestQueued.wakeAll();
+	    }
+
+	    IORing ring = request.ring;
+	    ring.complete(request, result);
+	    ring.numInFlight--;
+	    totalInFlight--;
+
+	    numRequests++;
+	    totalLatency += Machine.timer().getTime() - request.submitTime;
+	}
+    }
+
+    /**
+     * Remove the first queued request that can be performed now: one with
+     * an explicit offset, or one on a file whose position no other worker
+     * is using.
+     */
+    private static Request nextRequest() {
+	for (Iterator<Request> i=queue.iterator(); i.hasNext(); ) {
+	    Request request = i.next();
+	    if (request.offset != -1 || !streamsInUse.contains(request.file)) {
+		i.remove();
+		return request;
+	    }
+	}
+
+	return null;
+    }
+
+    private static class Request {
+	Request(IORing ring, byte[] entry) {
+	    this.ring = ring;
+	    opcode = Lib.bytesToInt(entry, 0);
+	    fd = Lib.bytesToInt(entry, 4);
+	    buffer = Lib.bytesToInt(entry, 8);
+	    count = Lib.bytesToInt(entry, 12);
+	    offset = Lib.bytesToInt(entry, 16);
+	    userData = Lib.bytesToInt(entry, 20);
+	    submitTime = Machine.timer().getTime();
+	}
+
+	/**
+	 * Transfer the data a page at a time, as <tt>read()</tt> and
+	 * <tt>write()</tt> do.
+	 *
+	 * @return	the number of bytes transferred, or -1 if an error occurred
+	 *		before any were.
+	 */
+	int perform() {
+	    UserProcess process = ring.process;
+	    byte[] data = new byte[Processor.pageSize];
+	    int total = 0;
+
+	    while (total < count) {
+		int length = Math.min(data.length, count-total);
+		int amount;
+
+		if (opcode == opWrite) {
+		    length = process.readVirtualMemory(buffer+total, data, 0,
+						       length);
+		    if (length == 0)
+			return (total > 0) ? total : -1;
+
+		    amount = (offset == -1)
+			? file.write(data, 0, length)
+			: file.write(offset+total, data, 0, length);
+		    if (amount == -1)
+			return (total > 0) ? total : -1;
+		}
+		else {
+		    amount = (offset == -1)
+			? file.read(data, 0, length)
+			: file.read(offset+total, data, 0, length);
+		    if (amount == -1)
+			return (total > 0) ? total : -1;
+
+		    int copied = process.writeVirtualMemory(buffer+total, data,
+							    0, amount);
+
+		    // the rest of the buffer is not valid user memory
+		    if (copied < amount)
+			return (total+copied > 0) ? total+copied : -1;
+		}
+
+		total += amount;
+		if (amount < length)
+		    break;
+	    }
+
+	    return total;
+	}
+
+	IORing ring;
+	OpenFile file;
+	int opcode, fd, buffer, count, offset, userData;
+	long submitTime;
+    }
+
+    private UserProcess process;
+    private int address, entries;
+    private Condition2 completed;
+
+    /** The next submission entry to read, and the next completion to post. */
+    private int sqHead = 0, cqTail = 0;
+    private int numInFlight = 0;
+
+    private static Lock lock;
+    private static Condition2 requestQueued;
+    private static KThread[] workers = null;
+    private static LinkedList<Request> queue = new LinkedList<Request>();
+    /** The files with a worker performing a request at their position. */
+    private static HashSet<OpenFile> streamsInUse = new HashSet<OpenFile>();
+
+    private static int totalInFlight = 0, maxInFlight = 0;
+    private static int numRequests = 0;
+    private static long totalLatency = 0;
+
+    /** The most entries a ring may have. */
+    static final int maxEntries = 256;
+
+    static final int opRead = 0, opWrite = 1;
+
+    private static final int sqHeadOffset = 0, sqTailOffset = 4,
+	cqHeadOffset = 8, cqTailOffset = 12;
+    private static final int headerSize = 16;
+    private static final int sqEntrySize = 24, cqEntrySize = 8;
+}
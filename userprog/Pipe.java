@@ -0,0 +1,388 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.LinkedList;
+
+/**
+ * A one-way channel between processes, with a read end and a write end that
+ * are used as open files. Data written waits in a ring buffer of
+ * <tt>bufferSize</tt> bytes until it is read. A read waits until some data
+ * is available, and returns 0 once the buffer is empty and the write end is
+ * closed. A write waits until all of its data fits, and fails once the read
+ * end is closed.
+ *
+ * <p>
+ * When a reader is already waiting on an empty pipe, a writer copies its
+ * data straight into the reader's buffer instead of through the ring. If
+ * both buffers are in user memory, the data is copied directly from one
+ * process's physical pages to the other's, so it is copied only once.
+ */
+class Pipe {
+    /**
+     * Allocate a new pipe.
+     */
+    Pipe() {
+	lock = new Lock();
+	dataReady = new Condition2(lock);
+	spaceReady = new Condition2(lock);
+
+	readEnd = new End(true);
+	writeEnd = new End(false);
+
+	numPipes++;
+    }
+
+    /**
+     * Print the number of pipes and how much data went through the ring, if
+     * any pipe was created.
+     */
+    static void print() {
+	if (numPipes == 0)
+	    return;
+
+	System.out.println("Pipes: " + numPipes + " created, bytes copied "
+			   + "directly " + numDirectBytes + ", through the buffer "
+			   + numBufferedBytes);
+    }
+
+    /**
+     * Read up to <i>length</i> bytes into a buffer.
+     */
+    private int read(Buffer to, int length) {
+	if (length == 0)
+	    return 0;
+
+	lock.acquire();
+
+	Buffer waiting = null;
+	while (count == 0 && !writeEnd.closed) {
+	    // a writer that finds us waiting copies straight into our buffer
+	    if (pendingReader == null) {
+		waiting = to;
+		waiting.length = length;
+		waiting.amount = 0;
+		pendingReader = waiting;
+	    }
+
+	    dataReady.sleep();
+
+	    if (waiting != null && waiting.amount > 0) {
+		lock.release();
+		return waiting.amount;
+	    }
+	}
+
+	if (pendingReader == waiting)
+	    pendingReader = null;
+
+	int amount = 0;
+	while (amount < length && count > 0) {
+	    int chunk = Math.min(Math.min(length-amount, count),
+				 bufferSize-head);
+	    int copied = to.copyFrom(buffer, head, amount, chunk);
+
+	    head = (head+copied) % bufferSize;
+	    count -= copied;
+	    amount += copied;
+
+	    if (copied < chunk) {
+		if (amount == 0)
+		    amount = -1;
+		break;
+	    }
+	}
+
+	spaceReady.wakeAll();
+	signalWaitSets();
+
+	lock.release();
+	return amount;
+    }
+
+    /**
+     * Write <i>length</i> bytes from a buffer, waiting for room as needed.
+     */
+    private int write(Buffer from, int length) {
+	lock.acquire();
+
+	int amount = 0;
+	while (amount < length && !readEnd.closed) {
+	    int chunk, copied;
+
+	    if (count == 0 && pendingReader != null) {
+		Buffer to = pendingReader;
+		pendingReader = null;
+
+		chunk = Math.min(length-amount, to.length);
+		copied = from.copyTo(to, amount, chunk);
+		to.amount = copied;
+		numDirectBytes += copied;
+	    }
+	    else if (count < bufferSize) {
+		int tail = (head+count) % bufferSize;
+		chunk = Math.min(Math.min(length-amount, bufferSize-count),
+				 bufferSize-tail);
+		copied = from.copyTo(buffer, tail, amount, chunk);
+		count += copied;
+		numBufferedBytes += copied;
+	    }
+	    else {
+		spaceReady.sleep();
+		continue;
+	    }
+
+	    dataReady.wakeAll();
+	    signalWaitSets();
+
+	    amount += copied;
+	    if (copied < chunk)
+		break;
+	}
+
+	lock.release();
+	return (amount == 0 && length > 0) ? -1 : amount;
+    }
+
+    private void signalWaitSets() {
+	for (WaitSet waitSet : waitSets)
+	    waitSet.signal();
+    }
+
+    /**
+     * One end of the pipe, shared by every process that has it open.
+     */
+    class End extends OpenFile implements Pollable {
+	End(boolean reading) {
+	    super(null, reading ? "pipe (read)" : "pipe (write)");
+	    this.reading = reading;
+	}
+
+	/**
+	 * Read from the pipe into user memory.
+	 *
+	 * @param	process	the process.
+	 * @param	vaddr	the virtual address of the buffer.
+	 * @param	length	the number of bytes to read.
+	 * @return	the number of bytes read, or -1 on error.
+	 */
+	int read(UserProcess process, int vaddr, int length) {
+	    if (!reading || closed)
+		return -1;
+
+	    return Pipe.this.read(new Buffer(process, vaddr), length);
+	}
+
+	/**
+	 * Write to the pipe from user memory.
+	 *
+	 * @param	process	the process.
+	 * @param	vaddr	the virtual address of the buffer.
+	 * @param	length	the number of bytes to write.
+	 * @return	the number of bytes written, or -1 on error.
+	 */
+	int write(UserProcess process, int vaddr, int length) {
+	    if (reading || closed)
+		return -1;
+
+	    return Pipe.this.write(new Buffer(process, vaddr), length);
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    if (!reading || closed)
+		return -1;
+
+	    return Pipe.this.read(new Buffer(buf, offset), length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    if (reading || closed)
+		return -1;
+
+	    return Pipe.this.write(new Buffer(buf, offset), length);
+	}
+
+	public void close() {
+	    lock.acquire();
+
+	    closed = true;
+	    dataReady.wakeAll();
+	    spaceReady.wakeAll();
+	    signalWaitSets();
+
+	    lock.release();
+	}
+
+	public int poll() {
+	    lock.acquire();
+
+	    int events = 0;
+	    if (reading) {
+		if (count > 0 || writeEnd.closed)
+		    events |= pollIn;
+		if (writeEnd.closed)
+		    events |= pollHup;
+	    }
+	    else {
+		if (readEnd.closed)
+		    events |= pollErr;
+		else if (count < bufferSize || pendingReader != null)
+		    events |= pollOut;
+	    }
+
+	    lock.release();
+	    return events;
+	}
+
+	public void addWaitSet(WaitSet waitSet) {
+	    lock.acquire();
+	    waitSets.add(waitSet);
+	    lock.release();
+	}
+
+	public void removeWaitSet(WaitSet waitSet) {
+	    lock.acquire();
+	    waitSets.remove(waitSet);
+	    lock.release();
+	}
+
+	private boolean reading;
+	private boolean closed = false;
+    }
+
+    /**
+     * A buffer to transfer data to or from, either in a process's virtual
+     * memory or in a kernel array.
+     */
+    private static class Buffer {
+	Buffer(UserProcess process, int vaddr) {
+	    this.process = process;
+	    this.vaddr = vaddr;
+	}
+
+	Buffer(byte[] data, int offset) {
+	    this.data = data;
+	    this.offset = offset;
+	}
+
+	/**
+	 * Copy from an array into this buffer.
+	 *
+	 * @return	the number of bytes copied.
+	 */
+	int copyFrom(byte[] array, int arrayOffset, int position, int length) {
+	    if (process != null) {
+		return process.writeVirtualMemory(vaddr+position, array,
+						  arrayOffset, length);
+	    }
+
+	    System.arraycopy(array, arrayOffset, data, offset+position, length);
+	    return length;
+	}
+
+	/**
+	 * Copy from this buffer into an array.
+	 *
+	 * @return	the number of bytes copied.
+	 */
+	int copyTo(byte[] array, int arrayOffset, int position, int length) {
+	    if (process != null) {
+		return process.readVirtualMemory(vaddr+position, array,
+						 arrayOffset, length);
+	    }
+
+	    System.arraycopy(data, offset+position, array, arrayOffset, length);
+	    return length;
+	}
+
+	/**
+	 * Copy from this buffer to the start of another.
+	 *
+	 * @return	the number of bytes copied.
+	 */
+	int copyTo(Buffer to, int position, int length) {
+	    if (to.process == null)
+		return copyTo(to.data, to.offset, position, length);
+	    if (process == null)
+		return to.copyFrom(data, offset+position, 0, length);
+
+	    return copyBetween(process, vaddr+position, to.process, to.vaddr,
+			       length);
+	}
+
+	UserProcess process = null;
+	int vaddr;
+	byte[] data = null;
+	int offset;
+
+	/** For a waiting reader, the most bytes it wants. */
+	int length;
+	/** For a waiting reader, the bytes a writer copied to it. */
+	int amount;
+    }
+
+    /**
+     * Copy directly between the physical pages of two processes.
+     *
+     * @return	the number of bytes copied.
+     */
+    private static int copyBetween(UserProcess fromProcess, int fromVaddr,
+				   UserProcess toProcess, int toVaddr,
+				   int length) {
+	byte[] memory = Machine.processor().getMemory();
+	int pageSize = Processor.pageSize;
+
+	int amount = 0;
+	while (amount < length) {
+	    int fromVpn = Processor.pageFromAddress(fromVaddr+amount);
+	    int toVpn = Processor.pageFromAddress(toVaddr+amount);
+	    int fromOffset = Processor.offsetFromAddress(fromVaddr+amount);
+	    int toOffset = Processor.offsetFromAddress(toVaddr+amount);
+
+	    TranslationEntry from, to;
+	    int fromPpn;
+	    do {
+		from = fromProcess.translatePage(fromVpn, false);
+		if (from == null)
+		    return amount;
+		fromPpn = from.ppn;
+
+		to = toProcess.translatePage(toVpn, true);
+		if (to == null)
+		    return amount;
+
+		// paging in the destination may have evicted the source
+	    } while (!from.valid || from.ppn != fromPpn);
+
+	    int chunk = Math.min(length-amount,
+				 Math.min(pageSize-fromOffset,
+					  pageSize-toOffset));
+	    System.arraycopy(memory, fromPpn*pageSize + fromOffset,
+			     memory, to.ppn*pageSize + toOffset, chunk);
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /** The read end of the pipe. */
+    End readEnd;
+    /** The write end of the pipe. */
+    End writeEnd;
+
+    private Lock lock;
+    private Condition2 dataReady, spaceReady;
+
+    private byte[] buffer = new byte[bufferSize];
+    private int head = 0, count = 0;
+    /** A reader waiting on an empty pipe, which a writer may fill. */
+    private Buffer pendingReader = null;
+    private LinkedList<WaitSet> waitSets = new LinkedList<WaitSet>();
+
+    private static int numPipes = 0;
+    private static int numDirectBytes = 0, numBufferedBytes = 0;
+
+    /** The size of the ring buffer, in bytes. */
+    static final int bufferSize = 4*Processor.pageSize;
+}
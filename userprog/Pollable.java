@@ -0,0 +1,45 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * An open file whose readiness can change, such as a stream, and which can
+ * therefore be waited on with <tt>poll()</tt>. Files that do not implement
+ * this interface are always ready.
+ */
+public interface Pollable {
+    /**
+     * Return which operations would not have to wait.
+     *
+     * @return	a combination of <tt>pollIn</tt>, <tt>pollOut</tt> and
+     *		<tt>pollHup</tt>.
+     */
+    public int poll();
+
+    /**
+     * Signal a wait set whenever the readiness of this file may have
+     * changed, until it is removed.
+     *
+     * @param	waitSet	the wait set to signal.
+     */
+    public void addWaitSet(WaitSet waitSet);
+
+    /**
+     * Stop signalling a wait set.
+     *
+     * @param	waitSet	the wait set added with <tt>addWaitSet()</tt>.
+     */
+    public void removeWaitSet(WaitSet waitSet);
+
+    /** Data can be read. */
+    public static final int pollIn = 0x001;
+    /** Data can be written. */
+    public static final int pollOut = 0x004;
+    /** An error occurred. */
+    public static final int pollErr = 0x008;
+    /** The other end was closed. */
+    public static final int pollHup = 0x010;
+    /** The file descriptor is not open. */
+    public static final int pollNval = 0x020;
+}
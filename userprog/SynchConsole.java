@@ -4,9 +4,24 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Input and output pass through ring buffers of <tt>bufferSize</tt> bytes.
+ * Received bytes are taken from the device as soon as they arrive, and bytes
+ * written are queued and sent by the interrupt handler, so a writer only
+ * waits when the output buffer is full, and is then woken once half of it
+ * has been sent rather than after every byte.
+ *
+ * <p>
+ * If <tt>SynchConsole.canonical</tt> is true, input is edited a line at a
+ * time: typed bytes are echoed, a backspace erases the last byte of the
+ * line, and a line can only be read once it is ended by a newline. The
+ * default is raw input, since the shell does its own editing.
  */
 public class SynchConsole {
     /**
@@ -16,7 +31,9 @@ public class SynchConsole {
      */
     public SynchConsole(SerialConsole console) {
 	this.console = console;
-	
+
+	canonical = Config.getBoolean("SynchConsole.canonical", false);
+
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
 	};
@@ -37,23 +54,18 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	while (block && numReadable == 0) {
+	    readerWaiting = true;
 	    readWait.P();
-
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
-	}
-	else {
-	    value = -1;
 	}
 
-	readLock.release();
+	int value = (numReadable == 0) ? -1 : removeInput();
+
 	Machine.interrupt().restore(intStatus);
+	readLock.release();
 	return value;
     }
 
@@ -67,22 +79,130 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	if (inCount == bufferSize) {
+	    // leave the byte in the device until there is room for it
+	    inputHeld = true;
+	    return;
+	}
+
+	receive(console.readByte());
+    }
+
+    /**
+     * Add a byte from the device to the input buffer, editing the line in
+     * canonical mode. Called with interrupts disabled.
+     */
+    private void receive(int value) {
+	if (!canonical) {
+	    addInput(value);
+	    numReadable = inCount;
+	}
+	else if (value == '\b') {
+	    if (inCount > numReadable) {
+		inCount--;
+		echo('\b');
+		echo(' ');
+		echo('\b');
+	    }
+	}
+	else {
+	    addInput(value);
+	    echo(value);
+
+	    // a full buffer ends the line, since it cannot hold any more
+	    if (value == '\n' || inCount == bufferSize)
+		numReadable = inCount;
+	}
+
+	if (readerWaiting && numReadable > 0) {
+	    readerWaiting = false;
+	    readWait.V();
+	}
+
+	if (numReadable > 0)
+	    signalWaitSets();
+    }
+
+    private void addInput(int value) {
+	inBuffer[(inHead+inCount) % bufferSize] = (byte) value;
+	inCount++;
+    }
+
+    private int removeInput() {
+	int value = inBuffer[inHead] & 0xFF;
+	inHead = (inHead+1) % bufferSize;
+	inCount--;
+	numReadable--;
+
+	if (inputHeld) {
+	    inputHeld = false;
+	    receive(console.readByte());
+	}
+
+	return value;
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Send a byte. Blocks only if the output buffer is full.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Send a run of bytes, which are not interleaved with the bytes of other
+     * writers. Blocks whenever the output buffer is full.
+     *
+     * @param	data	the buffer holding the bytes.
+     * @param	offset	the offset of the first byte in the buffer.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] data, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<length; i++) {
+	    while (outCount == bufferSize) {
+		numWriterWaits++;
+		writerWaiting = true;
+		writeWait.P();
+	    }
+
+	    addOutput(data[offset+i]);
+	}
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
+    /**
+     * Wait until every byte written has been sent.
+     */
+    public void flush() {
+	writeLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (sending) {
+	    flushWaiting = true;
+	    flushWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	writeLock.release();
+    }
+
+    /**
+     * Print the number of bytes sent and how often a writer had to wait for
+     * room in the output buffer.
+     */
+    public void print() {
+	System.out.println("Console: bytes written " + numBytesWritten
+			   + ", writer waits " + numWriterWaits
+			   + (canonical ? ", canonical input" : ", raw input"));
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -92,26 +212,120 @@ public class SynchConsole {
 	return new File(false, true);
     }
 
+    /**
+     * Queue a byte to be sent, starting the device if it is idle. Called with
+     * interrupts disabled and room in the output buffer.
+     */
+    private void addOutput(int value) {
+	outBuffer[(outHead+outCount) % bufferSize] = (byte) value;
+	outCount++;
+	numBytesWritten++;
+
+	if (!sending)
+	    sendNext();
+    }
+
+    /**
+     * Queue an echoed byte, which is dropped if the output buffer is full.
+     */
+    private void echo(int value) {
+	if (outCount < bufferSize)
+	    addOutput(value);
+    }
+
+    private void sendNext() {
+	sending = true;
+	console.writeByte(outBuffer[outHead]);
+	outHead = (outHead+1) % bufferSize;
+	outCount--;
+    }
+
     private void sendInterrupt() {
-	writeWait.V();
+	if (outCount > 0) {
+	    sendNext();
+	}
+	else {
+	    sending = false;
+
+	    if (flushWaiting) {
+		flushWaiting = false;
+		flushWait.V();
+	    }
+	}
+
+	if (writerWaiting && outCount <= bufferSize/2) {
+	    writerWaiting = false;
+	    writeWait.V();
+	}
+
+	if (outCount == bufferSize-1)
+	    signalWaitSets();
     }
 
-    private boolean charAvailable = false;
+    /**
+     * Return which operations on the console would not have to wait.
+     *
+     * @return	<tt>Pollable.pollIn</tt> if a byte can be read, combined with
+     *		<tt>Pollable.pollOut</tt> if there is room for a byte to be
+     *		written.
+     */
+    public int poll() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int events = 0;
+	if (numReadable > 0)
+	    events |= Pollable.pollIn;
+	if (outCount < bufferSize)
+	    events |= Pollable.pollOut;
+
+	Machine.interrupt().restore(intStatus);
+	return events;
+    }
+
+    private void signalWaitSets() {
+	for (WaitSet waitSet : waitSets)
+	    waitSet.signal();
+    }
 
     private SerialConsole console;
+    private boolean canonical;
+
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
     private Semaphore writeWait = new Semaphore(0);
+    private Semaphore flushWait = new Semaphore(0);
+    private boolean readerWaiting = false, writerWaiting = false;
+    private boolean flushWaiting = false;
+
+    private byte[] inBuffer = new byte[bufferSize];
+    private int inHead = 0, inCount = 0;
+    /** The number of buffered bytes that a read can return. */
+    private int numReadable = 0;
+    /** <tt>true</tt> if the device holds a byte the buffer had no room for. */
+    private boolean inputHeld = false;
+
+    private byte[] outBuffer = new byte[bufferSize];
+    private int outHead = 0, outCount = 0;
+    /** <tt>true</tt> while the device is sending a byte. */
+    private boolean sending = false;
 
-    private class File extends OpenFile {
+    private int numBytesWritten = 0, numWriterWaits = 0;
+
+    /** The wait sets of processes polling the console. */
+    private LinkedList<WaitSet> waitSets = new LinkedList<WaitSet>();
+
+    /** The size of each of the input and output buffers, in bytes. */
+    private static final int bufferSize = 256;
+
+    private class File extends OpenFile implements Pollable {
 	File(boolean canRead, boolean canWrite) {
 	    super(null, "SynchConsole");
-	    
+
 	    this.canRead = canRead;
 	    this.canWrite = canWrite;
 	}
-	
+
 	public void close() {
 	    canRead = canWrite = false;
 	}
@@ -125,8 +339,14 @@ public class SynchConsole {
 		int value = SynchConsole.this.readByte(false);
 		if (value == -1)
 		    break;
-		
+
 		buf[offset+i] = (byte) value;
+
+		// in canonical mode, a read returns at most one line
+		if (canonical && value == '\n') {
+		    i++;
+		    break;
+		}
 	    }
 
 	    return i;
@@ -135,13 +355,34 @@ public class SynchConsole {
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
-	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    
+
+	    SynchConsole.this.writeBytes(buf, offset, length);
+
 	    return length;
 	}
 
+	public int poll() {
+	    int events = SynchConsole.this.poll();
+	    if (!canRead)
+		events &= ~Pollable.pollIn;
+	    if (!canWrite)
+		events &= ~Pollable.pollOut;
+
+	    return events;
+	}
+
+	public void addWaitSet(WaitSet waitSet) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    waitSets.add(waitSet);
+	    Machine.interrupt().restore(intStatus);
+	}
+
+	public void removeWaitSet(WaitSet waitSet) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    waitSets.remove(waitSet);
+	    Machine.interrupt().restore(intStatus);
+	}
+
 	private boolean canRead, canWrite;
     }
 }
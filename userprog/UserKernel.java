@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -23,6 +25,14 @@ public class UserKernel extends ThreadedKernel {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	// every physical page starts out free and unshared
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	memoryLock = new Lock();
+	sharedMemoryLock = new Lock();
+	pageReferences = new int[numPhysPages];
+	for (int ppn=0; ppn<numPhysPages; ppn++)
+	    freePages.add(ppn);
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -46,6 +56,7 @@ public class UserKernel extends ThreadedKernel {
 	}
 	while (c != 'q');
 
+	console.flush();
 	System.out.println("");
     }
 
@@ -104,12 +115,110 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	console.flush();
+	console.print();
+
+	IORing.print();
+	Pipe.print();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a free physical page. The page starts out with a reference
+     * count of one.
+     *
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public static int allocatePage() {
+	memoryLock.acquire();
+
+	int ppn = -1;
+	if (!freePages.isEmpty()) {
+	    ppn = freePages.removeFirst();
+	    pageReferences[ppn] = 1;
+	}
+
+	memoryLock.release();
+	return ppn;
+    }
+
+    /**
+     * Allocate a specific physical page, if it is free. The page starts out
+     * with a reference count of one.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page was free.
+     */
+    public static boolean allocatePage(int ppn) {
+	memoryLock.acquire();
+
+	boolean free = (pageReferences[ppn] == 0);
+	if (free) {
+	    freePages.remove((Integer) ppn);
+	    pageReferences[ppn] = 1;
+	}
+
+	memoryLock.release();
+	return free;
+    }
+
+    /**
+     * Add a reference to an allocated physical page, so that it can be mapped
+     * by another page table (for example, by a copy-on-write child).
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void sharePage(int ppn) {
+	memoryLock.acquire();
+	Lib.assertTrue(pageReferences[ppn] > 0);
+	pageReferences[ppn]++;
+	memoryLock.release();
+    }
+
+    /**
+     * Drop a reference to a physical page. The page is returned to the free
+     * list when its last reference is dropped.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void freePage(int ppn) {
+	memoryLock.acquire();
+	Lib.assertTrue(pageReferences[ppn] > 0);
+	if (--pageReferences[ppn] == 0)
+	    freePages.add(ppn);
+	memoryLock.release();
+    }
+
+    /**
+     * Return the number of page tables that currently map a physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the reference count of the page.
+     */
+    public static int pageReferences(int ppn) {
+	return pageReferences[ppn];
+    }
+
+    /**
+     * Return the number of physical pages that are currently free.
+     *
+     * @return	the number of free physical pages.
+     */
+    public static int numFreePages() {
+	return freePages.size();
+    }
+
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Protects the shared memory segments and the futex wait queues. */
+    static Lock sharedMemoryLock;
+
+    private static LinkedList<Integer> freePages = new LinkedList<Integer>();
+    private static int[] pageReferences;
+    private static Lock memoryLock;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
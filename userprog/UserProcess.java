@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,10 +26,17 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
+	boolean intStatus = Machine.interrupt().disable();
+	processID = nextProcessID++;
+	Machine.interrupt().restore(intStatus);
+
+	pageTable = new TranslationEntry[0];
+	copyOnWrite = new boolean[0];
+
+	fileTable[fdStandardInput] = UserKernel.console.openForReading();
+	fileTable[fdStandardOutput] = UserKernel.console.openForWriting();
+	referenceFile(fileTable[fdStandardInput]);
+	referenceFile(fileTable[fdStandardOutput]);
     }
     
     /**
@@ -52,11 +62,37 @@ public class UserProcess {
 	if (!load(name, args))
 	    return false;
 	
-	new UThread(this).setName(name).fork();
+	start(name);
 
 	return true;
     }
 
+    /**
+     * Fork a user thread to run this process, and count it as running until
+     * it exits.
+     *
+     * @param	name	the name to give the user thread.
+     */
+    private void start(String name) {
+	boolean intStatus = Machine.interrupt().disable();
+	if (rootProcess == null)
+	    rootProcess = this;
+	numRunningProcesses++;
+	Machine.interrupt().restore(intStatus);
+
+	thread = new UThread(this);
+	thread.setName(name).fork();
+    }
+
+    /**
+     * Return the process ID of this process.
+     *
+     * @return	the process ID.
+     */
+    public int getProcessID() {
+	return processID;
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -133,12 +169,20 @@ public class UserProcess {
 
 	byte[] memory = Machine.processor().getMemory();
 	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr+amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+
+	    TranslationEntry entry = translatePage(vpn, false);
+	    if (entry == null)
+		break;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+	    System.arraycopy(memory, paddr, data, offset+amount, chunk);
+	    amount += chunk;
+	}
 
 	return amount;
     }
@@ -176,16 +220,59 @@ public class UserProcess {
 
 	byte[] memory = Machine.processor().getMemory();
 	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	int amount = 0;
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr+amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	    TranslationEntry entry = translatePage(vpn, true);
+	    if (entry == null)
+		break;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+	    System.arraycopy(data, offset+amount, memory, paddr, chunk);
+	    amount += chunk;
+	}
 
 	return amount;
     }
 
+    /**
+     * Find the translation for a virtual page on behalf of the kernel, as the
+     * processor would for a user access. Sets the used and dirty bits, and
+     * breaks copy-on-write sharing before a write.
+     *
+     * @param	vpn	the virtual page to translate.
+     * @param	writing	<tt>true</tt> if the page is about to be written.
+     * @return	the translation entry, or <tt>null</tt> if the page cannot be
+     *		accessed this way.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid)
+	    return null;
+
+	if (writing && entry.readOnly) {
+	    if (!breakCopyOnWrite(vpn))
+		return null;
+
+	    // breaking copy-on-write may have let another thread take the page
+	    entry = pageTable[vpn];
+	    if (!entry.valid || entry.readOnly)
+		return null;
+	}
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return entry;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -282,10 +369,19 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
-	    coff.close();
-	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
-	    return false;
+	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    int ppn = UserKernel.allocatePage();
+	    if (ppn == -1) {
+		unloadSections();
+		Lib.debug(dbgProcess, "\tinsufficient physical memory");
+		return false;
+	    }
+
+	    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+						  false, false);
 	}
 
 	// load sections
@@ -298,10 +394,17 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		section.loadPage(i, pageTable[vpn].ppn);
+		pageTable[vpn].readOnly = section.isReadOnly();
 	    }
 	}
+
+	// the stack and argument pages must not leak a previous owner's data
+	byte[] memory = Machine.processor().getMemory();
+	for (int vpn=numPages-stackPages-1; vpn<numPages; vpn++) {
+	    int paddr = pageTable[vpn].ppn*pageSize;
+	    Arrays.fill(memory, paddr, paddr+pageSize, (byte) 0);
+	}
 	
 	return true;
     }
@@ -310,6 +413,87 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn] != null && pageTable[vpn].valid) {
+		UserKernel.freePage(pageTable[vpn].ppn);
+		pageTable[vpn].valid = false;
+	    }
+	}
+
+	if (coff != null) {
+	    coff.close();
+	    coff = null;
+	}
+    }
+
+    /**
+     * Give a forked child a copy-on-write view of this process's address
+     * space. Every mapped page is shared with the child, and every writable
+     * page is made read-only in both page tables, so that the first write by
+     * either process copies just that page.
+     *
+     * @param	child	the newly forked process.
+     * @return	<tt>true</tt> if the address space was successfully shared.
+     */
+    protected boolean forkAddressSpace(UserProcess child) {
+	child.numPages = numPages;
+	child.pageTable = new TranslationEntry[numPages];
+	child.copyOnWrite = new boolean[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    if (entry.valid) {
+		UserKernel.sharePage(entry.ppn);
+
+		if (!entry.readOnly) {
+		    entry.readOnly = true;
+		    copyOnWrite[vpn] = true;
+		}
+		child.copyOnWrite[vpn] = copyOnWrite[vpn];
+	    }
+
+	    child.pageTable[vpn] = new TranslationEntry(entry);
+	}
+
+	return true;
+    }
+
+    /**
+     * Give this process a private, writable copy of a copy-on-write page. If
+     * no other page table still maps the physical page, it is simply made
+     * writable again; otherwise the page is copied into a newly allocated
+     * physical page.
+     *
+     * @param	vpn	the virtual page to make writable.
+     * @return	<tt>true</tt> if the page was copy-on-write and is now
+     *		writable.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	if (vpn < 0 || vpn >= copyOnWrite.length || !copyOnWrite[vpn])
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+
+	if (UserKernel.pageReferences(entry.ppn) > 1) {
+	    int ppn = UserKernel.allocatePage();
+	    if (ppn == -1)
+		return false;
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, entry.ppn*pageSize,
+			     memory, ppn*pageSize, pageSize);
+
+	    UserKernel.freePage(entry.ppn);
+	    entry.ppn = ppn;
+	}
+
+	Lib.debug(dbgProcess, "\tcopied on write: vpn " + vpn + " -> ppn "
+		  + entry.ppn);
+
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+	return true;
     }    
 
     /**
@@ -318,10 +502,22 @@ public class UserProcess {
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
      * and initialize all other registers to 0.
+     *
+     * <p>
+     * A forked process instead resumes from the registers its parent had at
+     * the time of the <tt>fork()</tt> call.
      */
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	if (forkedRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkedRegisters[i]);
+
+	    forkedRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -336,19 +532,845 @@ public class UserProcess {
     }
 
     /**
-     * Handle the halt() system call. 
+     * Handle the halt() system call. Only the root process may halt the
+     * machine; the call is ignored for any other process.
      */
     private int handleHalt() {
+	if (this != rootProcess)
+	    return 0;
 
+	// the console sends buffered output after write() returns
+	UserKernel.console.flush();
 	Machine.halt();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	return 0;
     }
 
+    /**
+     * Handle the exit() system call. Never returns.
+     */
+    private int handleExit(int status) {
+	terminate(status, true);
+
+	Lib.assertNotReached();
+	return 0;
+    }
+
+    /**
+     * Release everything this process owns, record its exit status for its
+     * parent, and finish the current thread. If this was the last running
+     * process, the kernel is terminated instead. Never returns.
+     *
+     * @param	status	the exit status to report to the parent.
+     * @param	normal	<tt>true</tt> if the process called <tt>exit()</tt>,
+     *			<tt>false</tt> if it was killed by an exception.
+     */
+    protected void terminate(int status, boolean normal) {
+	// requests in progress still use this process's memory and files
+	if (ioRing != null)
+	    ioRing.drain();
+
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] != null) {
+		closeFile(fileTable[fd]);
+		fileTable[fd] = null;
+	    }
+	}
+
+	detachSegments();
+	unloadSections();
+
+	for (UserProcess child : children.values())
+	    child.parent = null;
+	children.clear();
+
+	exitStatus = status;
+	exitedNormally = normal;
+
+	boolean intStatus = Machine.interrupt().disable();
+	boolean last = (--numRunningProcesses == 0);
+	Machine.interrupt().restore(intStatus);
+
+	if (last) {
+	    UserKernel.console.flush();
+	    Kernel.kernel.terminate();
+	}
+
+	KThread.finish();
+    }
+
+    /**
+     * Handle the exec() system call.
+     */
+    private int handleExec(int fileAddr, int argc, int argvAddr) {
+	String file = readVirtualMemoryString(fileAddr, maxStringLength);
+	if (file == null || !file.endsWith(".coff") || argc < 0)
+	    return -1;
+
+	String[] args = new String[argc];
+	byte[] pointer = new byte[4];
+	for (int i=0; i<argc; i++) {
+	    if (readVirtualMemory(argvAddr + i*4, pointer) != 4)
+		return -1;
+
+	    args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					      maxStringLength);
+	    if (args[i] == null)
+		return -1;
+	}
+
+	UserProcess child = newUserProcess();
+	child.parent = this;
+
+	// the child reads and writes where this process does, so a shell can
+	// connect it to a pipe
+	for (int fd : new int[] { fdStandardInput, fdStandardOutput }) {
+	    if (fileTable[fd] != null) {
+		closeFile(child.fileTable[fd]);
+		child.fileTable[fd] = fileTable[fd];
+		referenceFile(fileTable[fd]);
+	    }
+	}
+
+	if (!child.execute(file, args)) {
+	    for (int fd=0; fd<child.fileTable.length; fd++) {
+		closeFile(child.fileTable[fd]);
+		child.fileTable[fd] = null;
+	    }
+	    return -1;
+	}
+
+	children.put(child.processID, child);
+	return child.processID;
+    }
+
+    /**
+     * Handle the join() system call.
+     */
+    private int handleJoin(int processID, int statusAddr) {
+	UserProcess child = children.remove(processID);
+	if (child == null)
+	    return -1;
+
+	child.thread.join();
+	child.parent = null;
+
+	if (!child.exitedNormally)
+	    return 0;
+
+	byte[] status = Lib.bytesFromInt(child.exitStatus);
+	if (writeVirtualMemory(statusAddr, status) != status.length)
+	    return -1;
+
+	return 1;
+    }
+
+    /**
+     * Handle the fork() system call. The child gets a copy-on-write copy of
+     * this process's address space, shares its open files, and resumes from
+     * the same point with a return value of 0.
+     */
+    private int handleFork() {
+	UserProcess child = newUserProcess();
+
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    closeFile(child.fileTable[fd]);
+	    child.fileTable[fd] = fileTable[fd];
+	    referenceFile(fileTable[fd]);
+	}
+
+	if (!forkAddressSpace(child)) {
+	    child.terminateUnstarted();
+	    return -1;
+	}
+
+	Processor processor = Machine.processor();
+	child.forkedRegisters = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    child.forkedRegisters[i] = processor.readRegister(i);
+
+	// the child returns 0 from fork() and moves past the syscall
+	child.forkedRegisters[Processor.regV0] = 0;
+	child.forkedRegisters[Processor.regPC] =
+	    child.forkedRegisters[Processor.regNextPC];
+	child.forkedRegisters[Processor.regNextPC] += 4;
+
+	child.initialPC = initialPC;
+	child.initialSP = initialSP;
+	child.argc = argc;
+	child.argv = argv;
+
+	child.parent = this;
+	children.put(child.processID, child);
+
+	child.start(thread.getName());
+
+	return child.processID;
+    }
+
+    /**
+     * Release the resources of a process that was never started.
+     */
+    private void terminateUnstarted() {
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    closeFile(fileTable[fd]);
+	    fileTable[fd] = null;
+	}
+
+	unloadSections();
+    }
+
+    /**
+     * Handle the creat() and open() system calls.
+     */
+    private int handleOpen(int nameAddr, boolean create) {
+	String name = readVirtualMemoryString(nameAddr, maxStringLength);
+	if (name == null)
+	    return -1;
+
+	int fd = freeFileDescriptor();
+	if (fd == -1)
+	    return -1;
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, create);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = file;
+	referenceFile(file);
+	return fd;
+    }
+
+    /**
+     * Handle the read() system call.
+     */
+    private int handleRead(int fd, int bufferAddr, int count) {
+	OpenFile file = getFile(fd);
+	if (file == null || count < 0)
+	    return -1;
+
+	return readFile(file, bufferAddr, count);
+    }
+
+    /**
+     * Handle the write() system call.
+     */
+    private int handleWrite(int fd, int bufferAddr, int count) {
+	OpenFile file = getFile(fd);
+	if (file == null || count < 0)
+	    return -1;
+
+	return writeFile(file, bufferAddr, count);
+    }
+
+    /**
+     * Handle the readv() and writev() system calls. The buffers are filled
+     * or emptied in order, stopping after one that is not transferred in
+     * full.
+     */
+    private int handleVectorIO(int fd, int iovAddr, int iovcnt,
+			       boolean write) {
+	OpenFile file = getFile(fd);
+	if (file == null || iovcnt < 0 || iovcnt > maxIOVectors)
+	    return -1;
+
+	byte[] iov = new byte[iovcnt*8];
+	if (readVirtualMemory(iovAddr, iov) != iov.length)
+	    return -1;
+
+	for (int i=0; i<iovcnt; i++) {
+	    if (Lib.bytesToInt(iov, i*8+4) < 0)
+		return -1;
+	}
+
+	int total = 0;
+	for (int i=0; i<iovcnt; i++) {
+	    int bufferAddr = Lib.bytesToInt(iov, i*8);
+	    int count = Lib.bytesToInt(iov, i*8+4);
+
+	    int amount = write ? writeFile(file, bufferAddr, count)
+		: readFile(file, bufferAddr, count);
+	    if (amount == -1)
+		return (total > 0) ? total : -1;
+
+	    total += amount;
+	    if (amount < count)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Handle the copyfile() system call. The data is copied a page at a time
+     * through a kernel buffer, without passing through user memory.
+     */
+    private int handleCopyFile(int fdIn, int fdOut, int count) {
+	OpenFile in = getFile(fdIn), out = getFile(fdOut);
+	if (in == null || out == null || count < 0)
+	    return -1;
+
+	byte[] buffer = new byte[pageSize];
+	int total = 0;
+	while (total < count) {
+	    int request = Math.min(pageSize, count-total);
+	    int amount = in.read(buffer, 0, request);
+	    if (amount == -1)
+		return (total > 0) ? total : -1;
+
+	    int written = out.write(buffer, 0, amount);
+	    if (written == -1)
+		return (total > 0) ? total : -1;
+
+	    total += written;
+	    if (amount < request || written < amount)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Handle the poll() system call. Waits on a wait set registered with
+     * every pollable file until one of them is ready or the timeout, in
+     * ticks, expires. Files that cannot be polled are always ready. A file
+     * descriptor may appear more than once, and a negative one is ignored.
+     */
+    private int handlePoll(int fdsAddr, int nfds, int timeout) {
+	if (nfds < 0 || nfds > maxPollFiles)
+	    return -1;
+
+	byte[] fds = new byte[nfds*8];
+	if (readVirtualMemory(fdsAddr, fds) != fds.length)
+	    return -1;
+
+	OpenFile[] files = new OpenFile[nfds];
+	WaitSet waitSet = new WaitSet();
+	for (int i=0; i<nfds; i++) {
+	    int fd = Lib.bytesToInt(fds, i*8);
+	    files[i] = (fd < 0) ? null : getFile(fd);
+	    if (files[i] instanceof Pollable)
+		((Pollable) files[i]).addWaitSet(waitSet);
+	}
+
+	long deadline = Machine.timer().getTime() + timeout;
+	int numReady;
+	while (true) {
+	    numReady = 0;
+	    for (int i=0; i<nfds; i++) {
+		int events = Lib.bytesToShort(fds, i*8+4)
+		    | Pollable.pollErr | Pollable.pollHup;
+
+		int revents;
+		if (Lib.bytesToInt(fds, i*8) < 0)
+		    revents = 0;
+		else if (files[i] == null)
+		    revents = Pollable.pollNval;
+		else if (files[i] instanceof Pollable)
+		    revents = ((Pollable) files[i]).poll() & events;
+		else
+		    revents = (Pollable.pollIn | Pollable.pollOut) & events;
+
+		Lib.bytesFromShort(fds, i*8+6, (short) revents);
+		if (revents != 0)
+		    numReady++;
+	    }
+
+	    if (numReady > 0 || timeout == 0)
+		break;
+
+	    long remaining = -1;
+	    if (timeout > 0) {
+		remaining = deadline - Machine.timer().getTime();
+		if (remaining <= 0)
+		    break;
+	    }
+
+	    waitSet.await(remaining);
+	}
+
+	for (int i=0; i<nfds; i++) {
+	    if (files[i] instanceof Pollable)
+		((Pollable) files[i]).removeWaitSet(waitSet);
+	}
+
+	if (writeVirtualMemory(fdsAddr, fds) != fds.length)
+	    return -1;
+
+	return numReady;
+    }
+
+    /**
+     * Read from a file into user memory, a page at a time.
+     *
+     * @param	file		the file to read.
+     * @param	bufferAddr	the virtual address of the buffer.
+     * @param	count		the number of bytes to read.
+     * @return	the number of bytes read, or -1 if an error occurred before
+     *		any were.
+     */
+    private int readFile(OpenFile file, int bufferAddr, int count) {
+	// a pipe copies straight to user memory
+	if (file instanceof Pipe.End)
+	    return ((Pipe.End) file).read(this, bufferAddr, count);
+
+	byte[] buffer = new byte[pageSize];
+	int total = 0;
+	while (total < count) {
+	    int request = Math.min(pageSize, count-total);
+	    int amount = file.read(buffer, 0, request);
+	    if (amount == -1)
+		return (total > 0) ? total : -1;
+
+	    int copied = writeVirtualMemory(bufferAddr+total, buffer, 0,
+					    amount);
+	    total += copied;
+
+	    // the rest of the buffer is not valid user memory
+	    if (copied < amount)
+		return (total > 0) ? total : -1;
+
+	    if (amount < request)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Write from user memory to a file, a page at a time.
+     *
+     * @param	file		the file to write.
+     * @param	bufferAddr	the virtual address of the buffer.
+     * @param	count		the number of bytes to write.
+     * @return	the number of bytes written, or -1 if an error occurred before
+     *		any were.
+     */
+    private int writeFile(OpenFile file, int bufferAddr, int count) {
+	if (file instanceof Pipe.End)
+	    return ((Pipe.End) file).write(this, bufferAddr, count);
+
+	byte[] buffer = new byte[pageSize];
+	int total = 0;
+	while (total < count) {
+	    int request = Math.min(pageSize, count-total);
+	    int length = readVirtualMemory(bufferAddr+total, buffer, 0,
+					   request);
+	    if (length == 0)
+		return (total > 0) ? total : -1;
+
+	    int amount = file.write(buffer, 0, length);
+	    if (amount == -1)
+		return (total > 0) ? total : -1;
+
+	    total += amount;
+
+	    // stop at a short write, or where the buffer stops being valid
+	    if (amount < request)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getFile(fd);
+	if (file == null)
+	    return -1;
+
+	fileTable[fd] = null;
+	closeFile(file);
+	return 0;
+    }
+
+    /**
+     * Handle the pipe() system call. Stores the file descriptors of the read
+     * and write ends in the two words at <i>fdsAddr</i>.
+     */
+    private int handlePipe(int fdsAddr) {
+	int readFd = -1, writeFd = -1;
+	for (int fd=0; fd<fileTable.length && writeFd == -1; fd++) {
+	    if (fileTable[fd] == null) {
+		if (readFd == -1)
+		    readFd = fd;
+		else
+		    writeFd = fd;
+	    }
+	}
+
+	if (writeFd == -1)
+	    return -1;
+
+	byte[] fds = new byte[8];
+	Lib.bytesFromInt(fds, 0, readFd);
+	Lib.bytesFromInt(fds, 4, writeFd);
+	if (writeVirtualMemory(fdsAddr, fds) != fds.length)
+	    return -1;
+
+	Pipe pipe = new Pipe();
+	fileTable[readFd] = pipe.readEnd;
+	fileTable[writeFd] = pipe.writeEnd;
+	referenceFile(pipe.readEnd);
+	referenceFile(pipe.writeEnd);
+
+	return 0;
+    }
+
+    /**
+     * Handle the dup() system call.
+     */
+    private int handleDup(int fd) {
+	OpenFile file = getFile(fd);
+	if (file == null)
+	    return -1;
+
+	int newFd = freeFileDescriptor();
+	if (newFd == -1)
+	    return -1;
+
+	fileTable[newFd] = file;
+	referenceFile(file);
+	return newFd;
+    }
+
+    /**
+     * Handle the unlink() system call.
+     */
+    private int handleUnlink(int nameAddr) {
+	String name = readVirtualMemoryString(nameAddr, maxStringLength);
+	if (name == null)
+	    return -1;
+
+	return ThreadedKernel.fileSystem.remove(name) ? 0 : -1;
+    }
+
+    /**
+     * Handle the iosetup() system call. A process can register one pair of
+     * rings, which is not inherited by children created with fork().
+     */
+    private int handleIOSetup(int ringAddr, int entries) {
+	if (ioRing != null)
+	    return -1;
+
+	ioRing = IORing.create(this, ringAddr, entries);
+	return (ioRing == null) ? -1 : 0;
+    }
+
+    /**
+     * Handle the ioenter() system call.
+     */
+    private int handleIOEnter(int toSubmit, int minComplete) {
+	if (ioRing == null)
+	    return -1;
+
+	return ioRing.enter(toSubmit, minComplete);
+    }
+
+    /**
+     * Handle the shmcreate() system call. Allocates a zero-filled segment of
+     * shared memory under a key and attaches it to this process. Returns 0
+     * on error, since the result is an address.
+     */
+    private int handleShmCreate(int key, int size) {
+	if (size <= 0)
+	    return 0;
+
+	// a segment larger than physical memory could never be allocated
+	long numPages = ((long) size+pageSize-1) / pageSize;
+	if (numPages > Machine.processor().getNumPhysPages())
+	    return 0;
+
+	int count = (int) numPages;
+
+	UserKernel.sharedMemoryLock.acquire();
+
+	if (sharedSegments.containsKey(key)) {
+	    UserKernel.sharedMemoryLock.release();
+	    return 0;
+	}
+
+	SharedSegment segment = new SharedSegment(count);
+	byte[] memory = Machine.processor().getMemory();
+
+	for (int i=0; i<count; i++) {
+	    int ppn = allocateSharedPage();
+	    if (ppn == -1) {
+		for (int j=0; j<i; j++)
+		    UserKernel.freePage(segment.ppns[j]);
+		UserKernel.sharedMemoryLock.release();
+		return 0;
+	    }
+
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    segment.ppns[i] = ppn;
+	}
+
+	// the pages' initial references belong to this first attachment
+	int vpn = mapSharedPages(segment.ppns);
+	if (vpn == -1) {
+	    for (int i=0; i<count; i++)
+		UserKernel.freePage(segment.ppns[i]);
+	    UserKernel.sharedMemoryLock.release();
+	    return 0;
+	}
+
+	sharedSegments.put(key, segment);
+	segment.numAttached++;
+	attachedSegments.add(key);
+
+	UserKernel.sharedMemoryLock.release();
+
+	Lib.debug(dbgProcess, "created shared segment " + key + " at vpn "
+		  + vpn);
+	return vpn*pageSize;
+    }
+
+    /**
+     * Handle the shmattach() system call. Maps an existing shared segment
+     * into this process.
+     */
+    private int handleShmAttach(int key) {
+	UserKernel.sharedMemoryLock.acquire();
+
+	SharedSegment segment = sharedSegments.get(key);
+	if (segment == null || attachedSegments.contains(key)) {
+	    UserKernel.sharedMemoryLock.release();
+	    return 0;
+	}
+
+	for (int i=0; i<segment.ppns.length; i++)
+	    UserKernel.sharePage(segment.ppns[i]);
+
+	int vpn = mapSharedPages(segment.ppns);
+	if (vpn == -1) {
+	    for (int i=0; i<segment.ppns.length; i++)
+		UserKernel.freePage(segment.ppns[i]);
+	    UserKernel.sharedMemoryLock.release();
+	    return 0;
+	}
+
+	segment.numAttached++;
+	attachedSegments.add(key);
+
+	UserKernel.sharedMemoryLock.release();
+
+	Lib.debug(dbgProcess, "attached shared segment " + key + " at vpn "
+		  + vpn);
+	return vpn*pageSize;
+    }
+
+    /**
+     * Detach every shared segment attached to this process. A segment is
+     * destroyed once no process has it attached; its pages are freed with
+     * the rest of the address space by <tt>unloadSections()</tt>.
+     */
+    private void detachSegments() {
+	if (attachedSegments.isEmpty())
+	    return;
+
+	UserKernel.sharedMemoryLock.acquire();
 
-    private static final int
-        syscallHalt = 0,
+	for (int key : attachedSegments) {
+	    SharedSegment segment = sharedSegments.get(key);
+	    if (--segment.numAttached == 0)
+		sharedSegments.remove(key);
+	}
+	attachedSegments.clear();
+
+	UserKernel.sharedMemoryLock.release();
+    }
+
+    /**
+     * Allocate a physical page for a shared memory segment.
+     *
+     * @return	the physical page number, or -1 if no page is available.
+     */
+    protected int allocateSharedPage() {
+	return UserKernel.allocatePage();
+    }
+
+    /**
+     * Map physical pages into this process, writable, at the first virtual
+     * pages above the end of its address space. The caller's references to
+     * the pages pass to this process's page table.
+     *
+     * @param	ppns	the physical pages to map.
+     * @return	the first virtual page they were mapped at, or -1 if the
+     *		address space is full.
+     */
+    protected int mapSharedPages(int[] ppns) {
+	int firstVPN = pageTable.length;
+	if ((long) firstVPN+ppns.length > Processor.maxPages)
+	    return -1;
+
+	pageTable = Arrays.copyOf(pageTable, firstVPN+ppns.length);
+	copyOnWrite = Arrays.copyOf(copyOnWrite, firstVPN+ppns.length);
+
+	for (int i=0; i<ppns.length; i++)
+	    pageTable[firstVPN+i] = new TranslationEntry(firstVPN+i, ppns[i],
+							 true, false, false,
+							 false);
+
+	// the processor holds on to the old, shorter page table
+	Machine.processor().setPageTable(pageTable);
+
+	return firstVPN;
+    }
+
+    /**
+     * Handle the futexwait() system call. Sleeps until another process calls
+     * futexwake() on the same word, unless the word no longer holds the
+     * expected value. Waiters are keyed by physical address, so processes
+     * that map a shared segment at different addresses still meet.
+     */
+    private int handleFutexWait(int addr, int value) {
+	int paddr = physicalAddress(addr);
+	if (paddr == -1)
+	    return -1;
+
+	UserKernel.sharedMemoryLock.acquire();
+
+	// checked under the lock, so a wake between the check and the sleep
+	// cannot be lost
+	byte[] word = new byte[4];
+	if (readVirtualMemory(addr, word) != 4 ||
+	    Lib.bytesToInt(word, 0) != value) {
+	    UserKernel.sharedMemoryLock.release();
+	    return -1;
+	}
+
+	Futex futex = futexes.get(paddr);
+	if (futex == null) {
+	    futex = new Futex();
+	    futexes.put(paddr, futex);
+	}
+
+	futex.numWaiting++;
+	futex.waiters.sleep();
+
+	UserKernel.sharedMemoryLock.release();
+	return 0;
+    }
+
+    /**
+     * Handle the futexwake() system call. Wakes up to <i>count</i> processes
+     * waiting on a word, and returns the number woken.
+     */
+    private int handleFutexWake(int addr, int count) {
+	int paddr = physicalAddress(addr);
+	if (paddr == -1)
+	    return -1;
+
+	UserKernel.sharedMemoryLock.acquire();
+
+	int woken = 0;
+	Futex futex = futexes.get(paddr);
+	if (futex != null) {
+	    while (woken < count && futex.numWaiting > 0) {
+		futex.numWaiting--;
+		futex.waiters.wake();
+		woken++;
+	    }
+
+	    if (futex.numWaiting == 0)
+		futexes.remove(paddr);
+	}
+
+	UserKernel.sharedMemoryLock.release();
+	return woken;
+    }
+
+    /**
+     * Translate a word-aligned virtual address to a physical address.
+     *
+     * @param	vaddr	the virtual address.
+     * @return	the physical address, or -1 if the address is not valid.
+     */
+    private int physicalAddress(int vaddr) {
+	if (vaddr % 4 != 0)
+	    return -1;
+
+	TranslationEntry entry =
+	    translatePage(Processor.pageFromAddress(vaddr), false);
+	if (entry == null)
+	    return -1;
+
+	return entry.ppn*pageSize + Processor.offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Return the open file referred to by a file descriptor.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    protected OpenFile getFile(int fd) {
+	if (fd < 0 || fd >= fileTable.length)
+	    return null;
+
+	return fileTable[fd];
+    }
+
+    /**
+     * Return the lowest file descriptor that is not in use.
+     *
+     * @return	a free file descriptor, or -1 if the file table is full.
+     */
+    protected int freeFileDescriptor() {
+	for (int fd=0; fd<fileTable.length; fd++) {
+	    if (fileTable[fd] == null)
+		return fd;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Note that another file table refers to an open file. Forked processes
+     * share their parent's open files, so a file is only closed once its last
+     * reference is dropped.
+     *
+     * @param	file	the open file, or <tt>null</tt>.
+     */
+    protected static void referenceFile(OpenFile file) {
+	if (file == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+	Integer count = fileReferences.get(file);
+	fileReferences.put(file, count == null ? 1 : count+1);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop a file table reference to an open file, closing the file when no
+     * references remain.
+     *
+     * @param	file	the open file, or <tt>null</tt>.
+     */
+    protected static void closeFile(OpenFile file) {
+	if (file == null)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+	Integer count = fileReferences.get(file);
+	boolean last = (count == null || count == 1);
+	if (last)
+	    fileReferences.remove(file);
+	else
+	    fileReferences.put(file, count-1);
+	Machine.interrupt().restore(intStatus);
+
+	if (last)
+	    file.close();
+    }
+
+    protected static final int
+	syscallHalt = 0,
 	syscallExit = 1,
 	syscallExec = 2,
 	syscallJoin = 3,
@@ -357,7 +1379,20 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13,
+	syscallShmCreate = 14,
+	syscallShmAttach = 15,
+	syscallFutexWait = 16,
+	syscallFutexWake = 17,
+	syscallIOSetup = 18,
+	syscallIOEnter = 19,
+	syscallReadv = 20,
+	syscallWritev = 21,
+	syscallCopyFile = 22,
+	syscallPoll = 23,
+	syscallPipe = 24,
+	syscallDup = 25;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -378,6 +1413,27 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>14</td><td><tt>char *shmcreate(int key, int size);</tt></td></tr>
+     * <tr><td>15</td><td><tt>char *shmattach(int key);</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  futexwait(int *address, int value);
+     *								</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  futexwake(int *address, int count);
+     *								</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  iosetup(void *ring, int entries);
+     *								</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  ioenter(int toSubmit, int minComplete);
+     *								</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *					  int iovcnt);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *					   int iovcnt);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  copyfile(int fdIn, int fdOut, int count);
+     *								</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  poll(struct pollfd *fds, int nfds,
+     *					 int timeout);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  pipe(int fds[2]);</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  dup(int fd);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -391,7 +1447,50 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallExit:
+	    return handleExit(a0);
+	case syscallExec:
+	    return handleExec(a0, a1, a2);
+	case syscallJoin:
+	    return handleJoin(a0, a1);
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleRead(a0, a1, a2);
+	case syscallWrite:
+	    return handleWrite(a0, a1, a2);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
+	case syscallFork:
+	    return handleFork();
+	case syscallShmCreate:
+	    return handleShmCreate(a0, a1);
+	case syscallShmAttach:
+	    return handleShmAttach(a0);
+	case syscallFutexWait:
+	    return handleFutexWait(a0, a1);
+	case syscallFutexWake:
+	    return handleFutexWake(a0, a1);
+	case syscallIOSetup:
+	    return handleIOSetup(a0, a1);
+	case syscallIOEnter:
+	    return handleIOEnter(a0, a1);
+	case syscallReadv:
+	    return handleVectorIO(a0, a1, a2, false);
+	case syscallWritev:
+	    return handleVectorIO(a0, a1, a2, true);
+	case syscallCopyFile:
+	    return handleCopyFile(a0, a1, a2);
+	case syscallPoll:
+	    return handlePoll(a0, a1, a2);
+	case syscallPipe:
+	    return handlePipe(a0);
+	case syscallDup:
+	    return handleDup(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -423,10 +1522,20 @@ public class UserProcess {
 	    processor.advancePC();
 	    break;				       
 				       
+	case Processor.exceptionReadOnly:
+	    int vaddr = processor.readRegister(Processor.regBadVAddr);
+	    if (breakCopyOnWrite(Processor.pageFromAddress(vaddr)))
+		break;
+
+	    // a genuine write to a read-only page kills the process
+	    Lib.debug(dbgProcess, "Write to read-only page: " + vaddr);
+	    terminate(-1, false);
+	    break;
+
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    terminate(-1, false);
 	}
     }
 
@@ -435,14 +1544,80 @@ public class UserProcess {
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /**
+     * Which pages of the page table are shared copy-on-write. These pages are
+     * marked read-only, but a write copies them instead of killing the
+     * process.
+     */
+    protected boolean[] copyOnWrite;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
+    /** This process's file table, indexed by file descriptor. */
+    protected OpenFile[] fileTable = new OpenFile[maxOpenFiles];
+
+    /** This process's unique process ID. */
+    protected int processID;
+    /** The process that created this one, or <tt>null</tt> if disowned. */
+    protected UserProcess parent = null;
+    /** The children of this process that have not yet been joined. */
+    protected HashMap<Integer,UserProcess> children =
+	new HashMap<Integer,UserProcess>();
+    /** The user thread running this process. */
+    protected UThread thread = null;
+
+    private int exitStatus;
+    private boolean exitedNormally = false;
+
     private int initialPC, initialSP;
     private int argc, argv;
+    private int[] forkedRegisters = null;
+    private LinkedList<Integer> attachedSegments = new LinkedList<Integer>();
+    private IORing ioRing = null;
+
+    /**
+     * A segment of physical memory that processes can attach by key.
+     */
+    private static class SharedSegment {
+	SharedSegment(int numPages) {
+	    ppns = new int[numPages];
+	}
+
+	int[] ppns;
+	int numAttached = 0;
+    }
+
+    /**
+     * The processes waiting in <tt>futexwait()</tt> on one word.
+     */
+    private static class Futex {
+	Condition2 waiters = new Condition2(UserKernel.sharedMemoryLock);
+	int numWaiting = 0;
+    }
+
+    private static int nextProcessID = 0;
+    private static int numRunningProcesses = 0;
+    private static UserProcess rootProcess = null;
+    private static HashMap<OpenFile,Integer> fileReferences =
+	new HashMap<OpenFile,Integer>();
+    private static HashMap<Integer,SharedSegment> sharedSegments =
+	new HashMap<Integer,SharedSegment>();
+    private static HashMap<Integer,Futex> futexes =
+	new HashMap<Integer,Futex>();
+
+    /** The number of file descriptors available to each process. */
+    protected static final int maxOpenFiles = 16;
+    /** The longest string argument a syscall will accept. */
+    protected static final int maxStringLength = 256;
+    /** The most buffers <tt>readv()</tt> and <tt>writev()</tt> accept. */
+    protected static final int maxIOVectors = 16;
+    /** The most entries <tt>poll()</tt> accepts, a page of them. */
+    protected static final int maxPollFiles = Processor.pageSize/8;
+
+    private static final int fdStandardInput = 0, fdStandardOutput = 1;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
@@ -0,0 +1,141 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * The adaptive replacement cache (ARC) policy. Resident pages are kept on
+ * two LRU lists: <i>T1</i> holds pages referenced once since they were
+ * loaded, and <i>T2</i> pages referenced more than once. Two ghost lists,
+ * <i>B1</i> and <i>B2</i>, remember the virtual pages recently evicted from
+ * each, by process ID and virtual page number, and forget a process's pages
+ * when it exits. A fault on a page in <i>B1</i> means <i>T1</i> was too
+ * small, and a fault on a page in <i>B2</i> means <i>T2</i> was; the target
+ * size <i>p</i> of <i>T1</i> adapts accordingly, balancing recency against
+ * frequency for the current workload.
+ *
+ * <p>
+ * References are only seen through the used bits, so pages are moved from
+ * <i>T1</i> to <i>T2</i> when a victim is chosen rather than on every
+ * access. The kernel also allocates the free page before it reports which
+ * virtual page it holds, so <i>p</i> adapts after the replacement rather
+ * than before it.
+ */
+public class ARCPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new ARC policy.
+     */
+    public ARCPolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	capacity = numPhysPages;
+	keys = new long[numPhysPages];
+    }
+
+    public void pageLoaded(int ppn, VMProcess process, int vpn) {
+	long page = key(process.getProcessID(), vpn);
+	keys[ppn] = page;
+
+	if (b1.contains(page)) {
+	    target = Math.min(capacity,
+			      target + Math.max(1, b2.size()/b1.size()));
+	    b1.remove(page);
+	    t2.add(ppn);
+	}
+	else if (b2.contains(page)) {
+	    target = Math.max(0, target - Math.max(1, b1.size()/b2.size()));
+	    b2.remove(page);
+	    t2.add(ppn);
+	}
+	else {
+	    t1.add(ppn);
+
+	    while (t1.size() + b1.size() > capacity && !b1.isEmpty())
+		removeOldest(b1);
+	}
+
+	while (t1.size() + t2.size() + b1.size() + b2.size() > 2*capacity &&
+	       !b2.isEmpty())
+	    removeOldest(b2);
+    }
+
+    public void pageFreed(int ppn) {
+	// a page freed by its process, rather than evicted, leaves no ghost
+	t1.remove((Integer) ppn);
+	t2.remove((Integer) ppn);
+    }
+
+    public void processExited(int pid) {
+	removeProcess(b1, pid);
+	removeProcess(b2, pid);
+    }
+
+    public int chooseVictim() {
+	LinkedList<Integer> referenced = new LinkedList<Integer>();
+
+	for (Iterator<Integer> i=t1.iterator(); i.hasNext(); ) {
+	    int ppn = i.next();
+	    if (VMKernel.testAndClearUsed(ppn)) {
+		i.remove();
+		referenced.add(ppn);
+	    }
+	}
+	for (Iterator<Integer> i=t2.iterator(); i.hasNext(); ) {
+	    int ppn = i.next();
+	    if (VMKernel.testAndClearUsed(ppn)) {
+		i.remove();
+		referenced.add(ppn);
+	    }
+	}
+	t2.addAll(referenced);
+
+	int ppn;
+	if (!t1.isEmpty() && (t1.size() > target || t2.isEmpty())) {
+	    ppn = t1.removeFirst();
+	    b1.add(keys[ppn]);
+	}
+	else if (!t2.isEmpty()) {
+	    ppn = t2.removeFirst();
+	    b2.add(keys[ppn]);
+	}
+	else {
+	    return -1;
+	}
+
+	return ppn;
+    }
+
+    private static void removeOldest(LinkedHashSet<Long> ghosts) {
+	Iterator<Long> i = ghosts.iterator();
+	i.next();
+	i.remove();
+    }
+
+    private static void removeProcess(LinkedHashSet<Long> ghosts, int pid) {
+	for (Iterator<Long> i=ghosts.iterator(); i.hasNext(); ) {
+	    if ((int) (i.next() >>> 32) == pid)
+		i.remove();
+	}
+    }
+
+    /**
+     * Return the key of a virtual page of a process, used to recognize
+     * evicted pages when they are faulted back in.
+     */
+    private static long key(int pid, int vpn) {
+	return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+    }
+
+    private int capacity;
+    private int target = 0;
+    private long[] keys;
+
+    private LinkedList<Integer> t1 = new LinkedList<Integer>();
+    private LinkedList<Integer> t2 = new LinkedList<Integer>();
+    private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+    private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+}
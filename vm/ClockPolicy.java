@@ -0,0 +1,45 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock (second-chance) page replacement policy. A hand sweeps the
+ * physical pages, clearing the used bit of each recently used page and
+ * evicting the first page found whose used bit is already clear.
+ */
+public class ClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	this.numPhysPages = numPhysPages;
+    }
+
+    public void pageLoaded(int ppn, VMProcess process, int vpn) {
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int chooseVictim() {
+	// two sweeps clear every used bit, so the third finds a victim
+	for (int i=0; i<2*numPhysPages+1; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (VMKernel.isResident(ppn) && !VMKernel.testAndClearUsed(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    public void processExited(int pid) {
+    }
+
+    private int numPhysPages;
+    private int hand = 0;
+}
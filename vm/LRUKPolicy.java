@@ -0,0 +1,92 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * The LRU-K page replacement policy. Each physical page keeps the times of
+ * its last <i>K</i> references (<tt>LRUKPolicy.k</tt>, 2 by default), and
+ * the page whose <i>K</i>th most recent reference is oldest is evicted.
+ * Pages referenced fewer than <i>K</i> times are evicted first, least
+ * recently used first, so a page touched once by a scan does not push out
+ * pages that are used repeatedly.
+ *
+ * <p>
+ * References are only seen through the used bits, which are sampled each
+ * time a victim is chosen. All references between two samples therefore
+ * count as one, which acts as LRU-K's correlated reference period.
+ */
+public class LRUKPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new LRU-K policy.
+     */
+    public LRUKPolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	this.numPhysPages = numPhysPages;
+
+	int k = Config.getInteger("LRUKPolicy.k", 2);
+	Lib.assertTrue(k >= 1);
+
+	history = new long[numPhysPages][k];
+    }
+
+    public void pageLoaded(int ppn, VMProcess process, int vpn) {
+	Arrays.fill(history[ppn], never);
+	reference(ppn, Machine.timer().getTime());
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int chooseVictim() {
+	long time = Machine.timer().getTime();
+
+	int victim = -1;
+
+	for (int ppn=0; ppn<numPhysPages; ppn++) {
+	    if (!VMKernel.isResident(ppn))
+		continue;
+
+	    if (VMKernel.testAndClearUsed(ppn))
+		reference(ppn, time);
+
+	    if (victim == -1 || older(ppn, victim))
+		victim = ppn;
+	}
+
+	return victim;
+    }
+
+    public void processExited(int pid) {
+    }
+
+    /**
+     * Record a reference to a physical page.
+     */
+    private void reference(int ppn, long time) {
+	long[] times = history[ppn];
+	System.arraycopy(times, 0, times, 1, times.length-1);
+	times[0] = time;
+    }
+
+    /**
+     * Test whether page <i>a</i> has a larger backward K-distance than page
+     * <i>b</i>, breaking ties by the most recent reference.
+     */
+    private boolean older(int a, int b) {
+	int k = history[a].length;
+
+	if (history[a][k-1] != history[b][k-1])
+	    return history[a][k-1] < history[b][k-1];
+
+	return history[a][0] < history[b][0];
+    }
+
+    private int numPhysPages;
+    private long[][] history;
+
+    private static final long never = -1;
+}
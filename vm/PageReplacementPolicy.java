@@ -0,0 +1,58 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Chooses which physical page to evict when a demand-paged process needs a
+ * free page and none is left. <tt>VMKernel</tt> creates the policy named by
+ * the <tt>VMKernel.replacementPolicy</tt> configuration key, and calls it
+ * with <tt>VMKernel.pagingLock</tt> held.
+ *
+ * <p>
+ * The hardware only provides a used and a dirty bit per page, so a policy
+ * learns about references by calling <tt>VMKernel.testAndClearUsed()</tt>
+ * on the pages it manages. The used bits of the current process have been
+ * copied out of the TLB before <tt>chooseVictim()</tt> is called.
+ */
+public interface PageReplacementPolicy {
+    /**
+     * Prepare to manage the specified number of physical pages.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public void initialize(int numPhysPages);
+
+    /**
+     * Note that a free physical page has been filled with a virtual page.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that faulted the page in.
+     * @param	vpn	the virtual page it now holds.
+     */
+    public void pageLoaded(int ppn, VMProcess process, int vpn);
+
+    /**
+     * Note that a physical page no longer holds a virtual page, because it
+     * was evicted or because every process that mapped it has released it.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pageFreed(int ppn);
+
+    /**
+     * Note that a process has exited, so none of its virtual pages will be
+     * loaded again. Called after each of its pages has been freed.
+     *
+     * @param	pid	the process ID of the process.
+     */
+    public void processExited(int pid);
+
+    /**
+     * Choose a resident physical page to evict. The page is not freed until
+     * <tt>pageFreed()</tt> is called for it.
+     *
+     * @return	the physical page number to evict, or -1 if no page can be
+     *		evicted.
+     */
+    public int chooseVictim();
+}
@@ -5,6 +5,16 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
  */
@@ -21,11 +31,46 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	pagingLock = new Lock();
+
+	coreMap = new Frame[Machine.processor().getNumPhysPages()];
+	for (int ppn=0; ppn<coreMap.length; ppn++)
+	    coreMap[ppn] = new Frame();
+
+	int numBuckets = 1;
+	while (numBuckets < coreMap.length)
+	    numBuckets *= 2;
+	hashAnchors = new Mapping[numBuckets];
+
+	superPages = Config.getBoolean("VMKernel.superPages", false);
+
+	swapFileName = Config.getString("VMKernel.swapFile", "nachos.swap");
+	compressedPoolSize =
+	    Config.getInteger("VMKernel.compressedSwapPages", 16) * pageSize;
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockPolicy");
+	policy = (PageReplacementPolicy) Lib.constructObject(policyName);
+	policy.initialize(coreMap.length);
+
+	// prefetching more than a quarter of memory would evict the run itself
+	prefetchPages = Math.min(Config.getInteger("VMKernel.prefetchPages", 4),
+				 coreMap.length/4);
+	if (prefetchPages > 0) {
+	    prefetchRequested = new Condition2(pagingLock);
+	    prefetchArrived = new Condition2(pagingLock);
+
+	    KThread pager = new KThread(new Runnable() {
+		    public void run() { runPager(); }
+		});
+	    pager.setName("pager").fork();
+	}
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,16 +81,1017 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
-     * Terminate this kernel. Never returns.
+     * Terminate this kernel. Never returns. The paging and swap figures are
+     * the kernel's own; the machine's <tt>Stats</tt> only counts what the
+     * hardware observes.
      */
     public void terminate() {
+	System.out.println("VM: " + policy.getClass().getName()
+			   + ", page faults " + numPageFaults
+			   + ", evictions " + numEvictions
+			   + ", swap reads " + numSwapReads
+			   + ", swap writes " + numSwapWrites
+			   + ", prefetch hits " + numPrefetchHits + "/"
+			   + numPrefetched
+			   + ", superpage promotions " + numPromotions
+			   + " (" + numPagesMoved + " pages moved)");
+	System.out.println("Swap: in/out " + numSwapReads + "/" + numSwapWrites
+			   + ", zero pages " + numZeroSwapReads + "/"
+			   + numZeroSwapWrites
+			   + ", compressed " + numCompressedSwapReads + "/"
+			   + numCompressedSwapWrites
+			   + " (" + (numCompressedSwapWrites == 0 ? 0 :
+				     100*compressedBytes /
+				     (numCompressedSwapWrites*pageSize))
+			   + "% of original size)"
+			   + ", swap file " + numSwapFileReads + "/"
+			   + numSwapFileWrites);
+
+	if (swapFile != null) {
+	    swapFile.close();
+	    ThreadedKernel.fileSystem.remove(swapFileName);
+	}
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page for a demand-paged process, evicting a page
+     * chosen by the replacement policy if no page is free. The caller must hold
+     * <tt>pagingLock</tt>, and must record the new owner with
+     * <tt>claimFrame()</tt> once the page has been filled.
+     *
+     * @return	the physical page number, or -1 if every page is in use and
+     *		none can be evicted.
+     */
+    static int allocateFrame() {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int ppn;
+	while ((ppn = UserKernel.allocatePage()) == -1) {
+	    if (!evictFrame())
+		return -1;
+	}
+
+	return ppn;
+    }
+
+    /**
+     * Evict the page chosen by the replacement policy.
+     *
+     * @return	<tt>true</tt> if a page was evicted.
+     */
+    private static boolean evictFrame() {
+	// the policy sees references through the used bits in the TLB
+	syncTLB();
+
+	int ppn = policy.chooseVictim();
+	if (ppn == -1)
+	    return false;
+
+	Lib.assertTrue(isResident(ppn));
+	evictFrame(ppn);
+	return true;
+    }
+
+    /**
+     * Evict a physical page from every process that maps it. A page shared
+     * copy-on-write is written to a single swap slot shared by all of its
+     * owners, so the owners still share one copy of it.
+     *
+     * @param	ppn	the physical page to evict.
+     */
+    private static void evictFrame(int ppn) {
+	Frame frame = coreMap[ppn];
+	VMProcess[] owners = frame.owners.toArray(new VMProcess[0]);
+
+	Lib.debug(dbgVM, "evicting ppn " + ppn + " (vpn " + frame.vpn + ")");
+	numEvictions++;
+
+	// unmap first, so no owner can modify the page while it is copied out
+	boolean dirty = false;
+	for (int i=0; i<owners.length; i++)
+	    dirty |= owners[i].unmapPage(frame.vpn);
+
+	if (dirty) {
+	    int slot = allocateSwapSlot();
+	    Lib.debug(dbgVM, "\tswapping out vpn " + frame.vpn + " to slot "
+		      + slot);
+	    writeSwap(slot, ppn);
+	    owners[0].numSwapWrites++;
+
+	    for (int i=0; i<owners.length; i++) {
+		if (i > 0)
+		    shareSwapSlot(slot);
+		owners[i].setSwapSlot(frame.vpn, slot);
+	    }
+	}
+
+	for (int i=0; i<owners.length; i++)
+	    releaseFrame(ppn, owners[i]);
+    }
+
+    /**
+     * Record that a process maps a physical page at the specified virtual
+     * page.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process mapping the page.
+     * @param	vpn	the virtual page the process maps it at.
+     */
+    static void claimFrame(int ppn, VMProcess process, int vpn) {
+	Frame frame = coreMap[ppn];
+	if (frame.owners.isEmpty())
+	    policy.pageLoaded(ppn, process, vpn);
+
+	frame.owners.add(process);
+	frame.vpn = vpn;
+
+	int bucket = hash(process.getProcessID(), vpn);
+	hashAnchors[bucket] = new Mapping(process.getProcessID(), vpn, ppn,
+					  hashAnchors[bucket]);
+    }
+
+    /**
+     * Drop a process's mapping of a physical page, freeing the page if no
+     * other process maps it.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that no longer maps the page.
+     */
+    static void releaseFrame(int ppn, VMProcess process) {
+	Frame frame = coreMap[ppn];
+	frame.owners.remove(process);
+	if (frame.owners.isEmpty())
+	    policy.pageFreed(ppn);
+
+	int bucket = hash(process.getProcessID(), frame.vpn);
+	Mapping previous = null;
+	for (Mapping m = hashAnchors[bucket]; m != null; m = m.next) {
+	    if (m.ppn == ppn && m.pid == process.getProcessID()) {
+		if (previous == null)
+		    hashAnchors[bucket] = m.next;
+		else
+		    previous.next = m.next;
+		break;
+	    }
+	    previous = m;
+	}
+
+	UserKernel.freePage(ppn);
+    }
+
+    /**
+     * Tell the replacement policy that a process has released its whole
+     * address space. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	process	the process.
+     */
+    static void processExited(VMProcess process) {
+	policy.processExited(process.getProcessID());
+    }
+
+    /**
+     * Look up the physical page holding a virtual page of a process in the
+     * inverted page table. The cost depends only on the length of one hash
+     * chain, not on the number or size of processes.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     * @return	the physical page number, or -1 if the page is not resident.
+     */
+    static int lookupFrame(VMProcess process, int vpn) {
+	int pid = process.getProcessID();
+
+	for (Mapping m = hashAnchors[hash(pid, vpn)]; m != null; m = m.next) {
+	    if (m.pid == pid && m.vpn == vpn)
+		return m.ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Hash a (process ID, virtual page) pair to a hash anchor table index.
+     */
+    private static int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 + vpn;
+	h ^= (h >>> 16);
+	return h & (hashAnchors.length-1);
+    }
+
+    /**
+     * Test whether a physical page holds a page of some process, and so can
+     * be evicted.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is mapped by some process.
+     */
+    static boolean isResident(int ppn) {
+	return !coreMap[ppn].owners.isEmpty();
+    }
+
+    /**
+     * Test whether any process that maps a physical page has used it since
+     * the last call, and clear the used bits.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page was used.
+     */
+    static boolean testAndClearUsed(int ppn) {
+	Frame frame = coreMap[ppn];
+
+	boolean used = false;
+	for (VMProcess owner : frame.owners) {
+	    TranslationEntry entry = owner.getPageEntry(frame.vpn);
+	    used |= entry.used;
+	    entry.used = false;
+	}
+
+	return used;
+    }
+
+    /**
+     * Test whether a physical page must be written to swap if it is
+     * evicted.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if some process has modified the page.
+     */
+    static boolean isDirty(int ppn) {
+	Frame frame = coreMap[ppn];
+
+	for (VMProcess owner : frame.owners) {
+	    if (owner.getPageEntry(frame.vpn).dirty)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Test whether a physical page holds a page of exactly one process, which
+     * maps it nowhere else.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is private to one process.
+     */
+    static boolean isPrivate(int ppn) {
+	return coreMap[ppn].owners.size() == 1 &&
+	    UserKernel.pageReferences(ppn) == 1;
+    }
+
+    /**
+     * Move a group of resident pages into an aligned run of physical pages,
+     * so that a superpage can map them. The run already holding most of the
+     * group in place is chosen. A page of another process holding part of
+     * the run is first moved out to a free page elsewhere; only the physical
+     * page behind its translation changes. When memory is full, the group
+     * can therefore only be rearranged among its own pages and free pages,
+     * and other processes' pages are left alone. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	ppns	the physical pages holding the group, in virtual page
+     *			order. Updated to the pages of the run.
+     * @return	<tt>true</tt> if the group now fills an aligned run.
+     */
+    static boolean gatherFrames(int[] ppns) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	int n = ppns.length;
+
+	int run = -1, bestScore = -1;
+	for (int first=0; first+n<=coreMap.length; first+=n) {
+	    int score = 0, free = 0, displaced = 0;
+	    boolean movable = true;
+	    for (int i=0; i<n && movable; i++) {
+		int ppn = first+i;
+		int references = UserKernel.pageReferences(ppn);
+		if (ppns[i] == ppn) {
+		    score += 2;
+		}
+		else if (references == 0) {
+		    score++;
+		    free++;
+		}
+		else if (!inGroup(ppns, ppn)) {
+		    // shared memory pages are not in the core map, so stay put
+		    movable = (coreMap[ppn].owners.size() == references);
+		    displaced++;
+		}
+	    }
+
+	    if (movable && displaced <= UserKernel.numFreePages() - free &&
+		score > bestScore) {
+		run = first;
+		bestScore = score;
+	    }
+	}
+
+	if (run == -1)
+	    return false;
+
+	for (int i=0; i<n; i++) {
+	    int target = run+i;
+	    if (ppns[i] == target)
+		continue;
+
+	    if (UserKernel.pageReferences(target) != 0 &&
+		!inGroup(ppns, target)) {
+		int ppn = 0;
+		while ((ppn >= run && ppn < run+n) ||
+		       !UserKernel.allocatePage(ppn))
+		    ppn++;
+
+		exchangeFrames(target, ppn);
+		numPagesMoved++;
+	    }
+
+	    if (UserKernel.pageReferences(target) == 0)
+		Lib.assertTrue(UserKernel.allocatePage(target));
+
+	    exchangeFrames(ppns[i], target);
+	    numPagesMoved++;
+
+	    for (int j=i+1; j<n; j++) {
+		if (ppns[j] == target)
+		    ppns[j] = ppns[i];
+	    }
+	    ppns[i] = target;
+	}
+
+	Lib.debug(dbgVM, "gathered superpage at ppn " + run);
+	numPromotions++;
+	return true;
+    }
+
+    /**
+     * Test whether a physical page holds one of a group of pages.
+     */
+    private static boolean inGroup(int[] ppns, int ppn) {
+	for (int i=0; i<ppns.length; i++) {
+	    if (ppns[i] == ppn)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Exchange the contents and the owners of two physical pages. The second
+     * page may instead be allocated but unowned, in which case the first
+     * page simply moves there and is freed. The replacement policy sees both
+     * pages freed and loaded again, so their reference history is lost.
+     */
+    private static void exchangeFrames(int a, int b) {
+	Frame frameA = coreMap[a], frameB = coreMap[b];
+
+	for (VMProcess owner : frameA.owners)
+	    invalidateTLBEntry(owner, frameA.vpn);
+	for (VMProcess owner : frameB.owners)
+	    invalidateTLBEntry(owner, frameB.vpn);
+
+	if (!frameA.owners.isEmpty())
+	    policy.pageFreed(a);
+	if (!frameB.owners.isEmpty())
+	    policy.pageFreed(b);
+
+	byte[] memory = Machine.processor().getMemory();
+	byte[] buffer = new byte[pageSize];
+	System.arraycopy(memory, a*pageSize, buffer, 0, pageSize);
+	System.arraycopy(memory, b*pageSize, memory, a*pageSize, pageSize);
+	System.arraycopy(buffer, 0, memory, b*pageSize, pageSize);
+
+	coreMap[a] = frameB;
+	coreMap[b] = frameA;
+	remapFrame(frameA, b);
+	remapFrame(frameB, a);
+
+	// the reference counts follow the owners; b is never left unreferenced
+	setReferences(b, frameA.owners.size());
+	setReferences(a, frameB.owners.size());
+
+	if (!frameA.owners.isEmpty())
+	    policy.pageLoaded(b, frameA.owners.getFirst(), frameA.vpn);
+	if (!frameB.owners.isEmpty())
+	    policy.pageLoaded(a, frameB.owners.getFirst(), frameB.vpn);
+    }
+
+    /**
+     * Point every owner of a core map entry at the physical page it has moved
+     * to.
+     */
+    private static void remapFrame(Frame frame, int ppn) {
+	for (VMProcess owner : frame.owners) {
+	    int pid = owner.getProcessID();
+
+	    owner.getPageEntry(frame.vpn).ppn = ppn;
+
+	    for (Mapping m = hashAnchors[hash(pid, frame.vpn)]; m != null;
+		 m = m.next) {
+		if (m.pid == pid && m.vpn == frame.vpn)
+		    m.ppn = ppn;
+	    }
+	}
+    }
+
+    /**
+     * Adjust the reference count of a physical page, freeing it if the count
+     * drops to zero.
+     */
+    private static void setReferences(int ppn, int count) {
+	while (UserKernel.pageReferences(ppn) < count)
+	    UserKernel.sharePage(ppn);
+	while (UserKernel.pageReferences(ppn) > count)
+	    UserKernel.freePage(ppn);
+    }
+
+    /**
+     * Allocate a page-sized swap slot. A slot is always backed by the same
+     * offset in the swap file, though its page may be kept in memory
+     * instead.
+     *
+     * @return	the swap slot number.
+     */
+    static int allocateSwapSlot() {
+	int slot;
+	if (!freeSwapSlots.isEmpty()) {
+	    slot = freeSwapSlots.removeFirst();
+	}
+	else {
+	    slot = numSwapSlots++;
+	    if (slot >= swapReferences.length)
+		swapReferences = Arrays.copyOf(swapReferences,
+					       2*swapReferences.length);
+	}
+
+	swapReferences[slot] = 1;
+	return slot;
+    }
+
+    /**
+     * Add a reference to a swap slot, so that it can back a page in another
+     * process (for example, a copy-on-write child).
+     *
+     * @param	slot	the swap slot number.
+     */
+    static void shareSwapSlot(int slot) {
+	Lib.assertTrue(swapReferences[slot] > 0);
+	swapReferences[slot]++;
+    }
+
+    /**
+     * Drop a reference to a swap slot, freeing it when no process refers to
+     * it any more.
+     *
+     * @param	slot	the swap slot number.
+     */
+    static void releaseSwapSlot(int slot) {
+	Lib.assertTrue(swapReferences[slot] > 0);
+	if (--swapReferences[slot] == 0) {
+	    zeroSlots.clear(slot);
+
+	    byte[] compressed = compressedPool.remove(slot);
+	    if (compressed != null)
+		compressedPoolBytes -= compressed.length;
+
+	    freeSwapSlots.add(slot);
+	}
+    }
+
+    /**
+     * Return the number of pages backed by a swap slot.
+     *
+     * @param	slot	the swap slot number.
+     * @return	the reference count of the slot.
+     */
+    static int swapReferences(int slot) {
+	return swapReferences[slot];
+    }
+
+    /**
+     * Ask the pager thread to prefetch the pages of a process starting at a
+     * virtual page. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	process	the process.
+     * @param	vpn	the first virtual page to prefetch.
+     */
+    static void requestPrefetch(VMProcess process, int vpn) {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	if (prefetchPages == 0)
+	    return;
+
+	// a newer request from the same process supersedes an older one
+	for (Iterator<PrefetchRequest> i=prefetchQueue.iterator();
+	     i.hasNext(); ) {
+	    if (i.next().process == process)
+		i.remove();
+	}
+
+	prefetchQueue.add(new PrefetchRequest(process, vpn));
+	prefetchRequested.wake();
+    }
+
+    /**
+     * The body of the pager thread, which services prefetch requests in the
+     * background while the processes that made them keep running. The pager
+     * holds <tt>pagingLock</tt> only to choose and install pages, and
+     * releases it while it reads them.
+     */
+    private static void runPager() {
+	pagingLock.acquire();
+
+	while (true) {
+	    while (prefetchQueue.isEmpty())
+		prefetchRequested.sleep();
+
+	    PrefetchRequest request = prefetchQueue.removeFirst();
+	    request.process.prefetch(request.vpn, prefetchPages);
+	}
+    }
+
+    /**
+     * Copy a physical page into a swap slot. A page of zeros is only noted
+     * in the zero-page bitmap. Any other page is compressed into the
+     * compressed pool if it shrinks enough, and written to the swap file if
+     * it does not.
+     *
+     * @param	slot	the swap slot to write.
+     * @param	ppn	the physical page to copy.
+     */
+    static void writeSwap(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = ppn*pageSize;
+
+	numSwapWrites++;
+
+	boolean zero = true;
+	for (int i=paddr; i<paddr+pageSize && zero; i++)
+	    zero = (memory[i] == 0);
+
+	if (zero) {
+	    zeroSlots.set(slot);
+	    numZeroSwapWrites++;
+	    return;
+	}
+
+	if (compressedPoolSize > 0) {
+	    deflater.reset();
+	    deflater.setInput(memory, paddr, pageSize);
+	    deflater.finish();
+	    int length = deflater.deflate(compressBuffer);
+
+	    if (deflater.finished() && length <= maxCompressedLength) {
+		compressedPool.put(slot, Arrays.copyOf(compressBuffer, length));
+		compressedPoolBytes += length;
+		numCompressedSwapWrites++;
+		compressedBytes += length;
+
+		// spill the least recently used pages to the swap file
+		Iterator<Map.Entry<Integer,byte[]>> i =
+		    compressedPool.entrySet().iterator();
+		while (compressedPoolBytes > compressedPoolSize) {
+		    Map.Entry<Integer,byte[]> eldest = i.next();
+		    i.remove();
+		    compressedPoolBytes -= eldest.getValue().length;
+
+		    byte[] page = new byte[pageSize];
+		    decompress(eldest.getValue(), page, 0);
+		    writeSwapFile(eldest.getKey(), page, 0);
+		}
+		return;
+	    }
+	}
+
+	writeSwapFile(slot, memory, paddr);
+    }
+
+    /**
+     * Copy a swap slot into a physical page, from whichever tier holds it.
+     *
+     * @param	slot	the swap slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    static void readSwap(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = ppn*pageSize;
+
+	numSwapReads++;
+
+	if (zeroSlots.get(slot)) {
+	    Arrays.fill(memory, paddr, paddr+pageSize, (byte) 0);
+	    numZeroSwapReads++;
+	    return;
+	}
+
+	byte[] compressed = compressedPool.get(slot);
+	if (compressed != null) {
+	    decompress(compressed, memory, paddr);
+	    numCompressedSwapReads++;
+	    return;
+	}
+
+	int amount = swapFile.read(slot*pageSize, memory, paddr, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap read failed");
+	numSwapFileReads++;
+    }
+
+    /**
+     * Copy consecutive swap slots into physical pages. Slots that are all in
+     * the swap file are read with a single I/O.
+     *
+     * @param	slot	the first swap slot to read.
+     * @param	ppns	the physical pages to fill, one per slot.
+     */
+    static void readSwap(int slot, int[] ppns) {
+	for (int i=0; i<ppns.length; i++) {
+	    if (zeroSlots.get(slot+i) || compressedPool.containsKey(slot+i)) {
+		for (int j=0; j<ppns.length; j++)
+		    readSwap(slot+j, ppns[j]);
+		return;
+	    }
+	}
+
+	byte[] buffer = new byte[ppns.length*pageSize];
+	int amount = swapFile.read(slot*pageSize, buffer, 0, buffer.length);
+	Lib.assertTrue(amount == buffer.length, "swap read failed");
+
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<ppns.length; i++)
+	    System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+			     pageSize);
+
+	numSwapReads += ppns.length;
+	numSwapFileReads++;
+    }
+
+    /**
+     * Write a page to its slot in the swap file, creating the swap file if
+     * necessary.
+     */
+    private static void writeSwapFile(int slot, byte[] data, int offset) {
+	if (swapFile == null) {
+	    swapFile = ThreadedKernel.fileSystem.open(swapFileName, true);
+	    Lib.assertTrue(swapFile != null, "unable to open swap file");
+	}
+
+	int amount = swapFile.write(slot*pageSize, data, offset, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap write failed");
+	numSwapFileWrites++;
+    }
+
+    /**
+     * Decompress a page from the compressed pool.
+     */
+    private static void decompress(byte[] compressed, byte[] data,
+				   int offset) {
+	inflater.reset();
+	inflater.setInput(compressed);
+	try {
+	    int amount = inflater.inflate(data, offset, pageSize);
+	    Lib.assertTrue(amount == pageSize, "corrupt compressed page");
+	}
+	catch (DataFormatException e) {
+	    Lib.assertNotReached("corrupt compressed page");
+	}
+    }
+
+    /**
+     * Make sure a process has an address space identifier, taking one from
+     * another process round-robin if every ASID is in use. The TLB entries
+     * left behind by the ASID's previous owner are flushed before it is
+     * reused; this is the only time TLB entries are flushed wholesale.
+     *
+     * @param	process	the process about to run.
+     */
+    static void assignASID(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (process.asid == -1) {
+	    int asid = -1;
+	    for (int i=0; i<asidOwners.length && asid == -1; i++) {
+		if (asidOwners[i] == null)
+		    asid = i;
+	    }
+	    if (asid == -1) {
+		asid = asidHand;
+		asidHand = (asidHand+1) % asidOwners.length;
+	    }
+
+	    Lib.debug(dbgVM, "assigning ASID " + asid + " to process "
+		      + process.getProcessID());
+
+	    flushTLB(asid);
+	    if (asidOwners[asid] != null)
+		asidOwners[asid].asid = -1;
+
+	    asidOwners[asid] = process;
+	    process.asid = asid;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Give up a process's address space identifier. Its TLB entries are left
+     * in place, since they cannot match until the ASID is reused.
+     *
+     * @param	process	the process that is exiting.
+     */
+    static void releaseASID(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (process.asid != -1) {
+	    asidOwners[process.asid] = null;
+	    process.asid = -1;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Fold the used and dirty bits collected by the TLB into the page tables
+     * of the processes that own the entries, and clear them in the TLB.
+     */
+    static void syncTLB() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid || !tlbEntry.used)
+		continue;
+
+	    // a superpage has one used and one dirty bit for all its pages
+	    VMProcess owner = asidOwners[tlbEntry.asid];
+	    int numPages = tlbEntry.superPage ? Processor.pagesPerSuperPage : 1;
+	    for (int j=0; j<numPages && owner != null; j++) {
+		TranslationEntry entry = owner.getPageEntry(tlbEntry.vpn+j);
+		if (entry.valid && entry.ppn == tlbEntry.ppn+j) {
+		    entry.used = true;
+		    entry.dirty |= tlbEntry.dirty;
+		}
+	    }
+
+	    tlbEntry.used = false;
+	    tlbEntry.dirty = false;
+	    processor.writeTLBEntry(i, tlbEntry);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Invalidate every TLB entry tagged with an ASID, after folding their
+     * used and dirty bits into the owner's page table.
+     *
+     * @param	asid	the address space identifier.
+     */
+    private static void flushTLB(int asid) {
+	syncTLB();
+
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.asid == asid)
+		processor.writeTLBEntry(i, new TranslationEntry());
+	}
+    }
+
+    /**
+     * Invalidate a process's TLB entry for a virtual page, if there is one,
+     * after folding its used and dirty bits into the page table. A superpage
+     * covering the page is invalidated as a whole.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     */
+    static void invalidateTLBEntry(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (process.asid != -1) {
+	    syncTLB();
+
+	    Processor processor = Machine.processor();
+
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.asid == process.asid &&
+		    covers(tlbEntry, vpn))
+		    processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Copy the read-only bits of a process's page table into its TLB
+     * entries, so that pages it has just shared copy-on-write fault on the
+     * next write.
+     *
+     * @param	process	the process.
+     */
+    static void writeProtectTLB(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.asid == process.asid) {
+		int numPages =
+		    tlbEntry.superPage ? Processor.pagesPerSuperPage : 1;
+		tlbEntry.readOnly = false;
+		for (int j=0; j<numPages; j++)
+		    tlbEntry.readOnly |=
+			process.getPageEntry(tlbEntry.vpn+j).readOnly;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Load a translation into the TLB, tagged with a process's ASID. An
+     * invalid entry, or one left behind by an exited process, is replaced if
+     * there is one; otherwise entries are replaced round-robin. Loading a
+     * superpage first invalidates the entries for the pages it covers.
+     *
+     * @param	process	the process the translation belongs to.
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page number.
+     * @param	readOnly	<tt>true</tt> if the page must not be written.
+     * @param	superPage	<tt>true</tt> to map the superpage starting at
+     *				<tt>vpn</tt> and <tt>ppn</tt>.
+     */
+    static void loadTLBEntry(VMProcess process, int vpn, int ppn,
+			     boolean readOnly, boolean superPage) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Processor processor = Machine.processor();
+
+	if (superPage) {
+	    syncTLB();
+
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry tlbEntry = processor.readTLBEntry(i);
+		if (tlbEntry.valid && tlbEntry.asid == process.asid &&
+		    tlbEntry.vpn >= vpn &&
+		    tlbEntry.vpn < vpn+Processor.pagesPerSuperPage)
+		    processor.writeTLBEntry(i, new TranslationEntry());
+	    }
+	}
+
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize() && victim == -1; i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (!tlbEntry.valid || asidOwners[tlbEntry.asid] == null)
+		victim = i;
+	}
+	if (victim == -1) {
+	    syncTLB();
+	    victim = tlbHand;
+	    tlbHand = (tlbHand+1) % processor.getTLBSize();
+	}
+
+	TranslationEntry tlbEntry = new TranslationEntry(vpn, ppn, true,
+							 readOnly, false,
+							 false);
+	tlbEntry.asid = process.asid;
+	tlbEntry.superPage = superPage;
+	processor.writeTLBEntry(victim, tlbEntry);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether a TLB entry translates a virtual page.
+     */
+    private static boolean covers(TranslationEntry tlbEntry, int vpn) {
+	if (tlbEntry.superPage)
+	    return vpn >= tlbEntry.vpn &&
+		vpn < tlbEntry.vpn+Processor.pagesPerSuperPage;
+	else
+	    return vpn == tlbEntry.vpn;
+    }
+
+    /**
+     * Protects the core map, the swap file, and every demand-paged page
+     * table. Held for the whole of each page fault, including its I/O.
+     */
+    static Lock pagingLock;
+
+    /**
+     * One entry of the core map, which records for every physical page the
+     * processes that map it and the virtual page they map it at. Together
+     * with the hash anchor table, which finds a page by (process ID, virtual
+     * page), the core map forms the inverted page table.
+     */
+    private static class Frame {
+	LinkedList<VMProcess> owners = new LinkedList<VMProcess>();
+	int vpn;
+    }
+
+    /**
+     * One mapping in the inverted page table. Each resident page has one
+     * mapping per process that maps it, so a page shared copy-on-write has
+     * several.
+     */
+    private static class Mapping {
+	Mapping(int pid, int vpn, int ppn, Mapping next) {
+	    this.pid = pid;
+	    this.vpn = vpn;
+	    this.ppn = ppn;
+	    this.next = next;
+	}
+
+	int pid;
+	int vpn;
+	int ppn;
+	Mapping next;
+    }
+
+    private static class PrefetchRequest {
+	PrefetchRequest(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	VMProcess process;
+	int vpn;
+    }
+
+    /**
+     * <tt>true</tt> if groups of resident pages are mapped by superpages
+     * (<tt>VMKernel.superPages</tt>).
+     */
+    static boolean superPages;
+
+    private static int prefetchPages;
+    private static Condition2 prefetchRequested;
+    /** Signalled when the pager has installed the pages it was reading. */
+    static Condition2 prefetchArrived;
+    private static LinkedList<PrefetchRequest> prefetchQueue =
+	new LinkedList<PrefetchRequest>();
+
+    private static VMProcess[] asidOwners =
+	new VMProcess[Processor.numASIDs];
+    private static int asidHand = 0;
+    private static int tlbHand = 0;
+
+    private static Frame[] coreMap;
+    private static Mapping[] hashAnchors;
+    private static PageReplacementPolicy policy;
+
+    private static String swapFileName;
+    private static OpenFile swapFile = null;
+    private static int numSwapSlots = 0;
+    private static int[] swapReferences = new int[16];
+    private static LinkedList<Integer> freeSwapSlots =
+	new LinkedList<Integer>();
+
+    /** Swap slots holding a page of zeros, which is not stored anywhere. */
+    private static BitSet zeroSlots = new BitSet();
+    /** Compressed swap slots, in least recently used order. */
+    private static LinkedHashMap<Integer,byte[]> compressedPool =
+	new LinkedHashMap<Integer,byte[]>(16, 0.75f, true);
+    private static int compressedPoolBytes = 0;
+    private static int compressedPoolSize;
+    private static Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private static Inflater inflater = new Inflater();
+    private static byte[] compressBuffer = new byte[Processor.pageSize];
+    /** Pages that compress to more than this are not worth keeping. */
+    private static final int maxCompressedLength = Processor.pageSize*3/4;
+
+    /** The number of pages faulted in by all processes. */
+    static int numPageFaults = 0;
+    private static int numEvictions = 0;
+    private static int numSwapReads = 0;
+    private static int numSwapWrites = 0;
+    private static int numZeroSwapReads = 0;
+    private static int numZeroSwapWrites = 0;
+    private static int numCompressedSwapReads = 0;
+    private static int numCompressedSwapWrites = 0;
+    private static long compressedBytes = 0;
+    private static int numSwapFileReads = 0;
+    private static int numSwapFileWrites = 0;
+    /** The number of pages prefetched by the pager thread. */
+    static int numPrefetched = 0;
+    /** The number of prefetched pages that were referenced before eviction. */
+    static int numPrefetchHits = 0;
+    private static int numPromotions = 0;
+    private static int numPagesMoved = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
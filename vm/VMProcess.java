@@ -5,6 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +26,11 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	if (scheduledTime != -1) {
+	    runTicks += Machine.timer().getTime() - scheduledTime;
+	    scheduledTime = -1;
+	}
     }
 
     /**
@@ -29,7 +38,12 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	// entries tagged with our ASID may still be in the TLB; the rest of the
+	// TLB is refilled on demand by handleTLBMiss()
+	VMKernel.assignASID(this);
+	Machine.processor().setASID(asid);
+
+	scheduledTime = Machine.timer().getTime();
     }
 
     /**
@@ -39,15 +53,818 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+	swapSlots = new int[numPages];
+	prefetched = new boolean[numPages];
+	prefetching = new boolean[numPages];
+	mappings = new MappedFile[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	Arrays.fill(swapSlots, -1);
+
+	referenceCoff(coff);
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.pagingLock.acquire();
+
+	waitForPrefetch(0, pageTable.length);
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid) {
+		if (isShared(vpn))
+		    UserKernel.freePage(pageTable[vpn].ppn);
+		else
+		    VMKernel.releaseFrame(pageTable[vpn].ppn, this);
+		pageTable[vpn].valid = false;
+	    }
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.releaseSwapSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	VMKernel.processExited(this);
+	VMKernel.releaseASID(this);
+	unloaded = true;
+
+	VMKernel.pagingLock.release();
+
+	if (coff != null) {
+	    releaseCoff(coff);
+	    coff = null;
+	}
+    }
+
+    /**
+     * Find the translation for a virtual page on behalf of the kernel,
+     * paging it in first if it is not resident.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	while (true) {
+	    VMKernel.pagingLock.acquire();
+	    boolean resident = pageTable[vpn].valid || pageIn(vpn);
+	    VMKernel.pagingLock.release();
+
+	    if (!resident)
+		return null;
+
+	    // releasing the lock can let another thread evict the page again
+	    TranslationEntry entry = super.translatePage(vpn, writing);
+	    if (entry != null || pageTable[vpn].valid)
+		return entry;
+	}
+    }
+
+    /**
+     * Share this process's address space copy-on-write with a forked child.
+     * Resident pages are shared as in <tt>UserProcess</tt>; pages that are
+     * swapped out share their swap slot, and are copied by being paged in
+     * separately by each process.
+     */
+    protected boolean forkAddressSpace(UserProcess child) {
+	VMProcess vmChild = (VMProcess) child;
+
+	VMKernel.pagingLock.acquire();
+
+	VMKernel.syncTLB();
+
+	super.forkAddressSpace(child);
+
+	// pages that became copy-on-write must not stay writable in the TLB
+	VMKernel.writeProtectTLB(this);
+
+	vmChild.swapSlots = new int[numPages];
+	vmChild.prefetched = new boolean[numPages];
+	vmChild.prefetching = new boolean[numPages];
+	vmChild.mappings = new MappedFile[numPages];
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid)
+		VMKernel.claimFrame(pageTable[vpn].ppn, vmChild, vpn);
+
+	    vmChild.swapSlots[vpn] = swapSlots[vpn];
+	    if (swapSlots[vpn] != -1)
+		VMKernel.shareSwapSlot(swapSlots[vpn]);
+	}
+
+	VMKernel.pagingLock.release();
+
+	vmChild.coff = coff;
+	referenceCoff(coff);
+
+	return true;
+    }
+
+    /**
+     * Give this process a private, writable copy of a copy-on-write page,
+     * paging it in first if it was evicted since the fault.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return false;
+
+	VMKernel.pagingLock.acquire();
+
+	TranslationEntry entry = pageTable[vpn];
+
+	if (entry.valid && copyOnWrite[vpn] &&
+	    UserKernel.pageReferences(entry.ppn) > 1) {
+	    int ppn = VMKernel.allocateFrame();
+
+	    // making room may have evicted the shared page itself
+	    if (ppn != -1 && entry.valid) {
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, entry.ppn*pageSize,
+				 memory, ppn*pageSize, pageSize);
+
+		VMKernel.releaseFrame(entry.ppn, this);
+		VMKernel.claimFrame(ppn, this, vpn);
+		entry.ppn = ppn;
+		entry.dirty = true;
+	    }
+	    else if (ppn != -1) {
+		UserKernel.freePage(ppn);
+	    }
+	}
+
+	boolean writable;
+	if (!entry.valid) {
+	    // a page that is paged back in is private to this process
+	    writable = pageIn(vpn) && !entry.readOnly;
+	}
+	else if (copyOnWrite[vpn] && UserKernel.pageReferences(entry.ppn) == 1) {
+	    entry.readOnly = false;
+	    copyOnWrite[vpn] = false;
+	    writable = true;
+	}
+	else {
+	    writable = !entry.readOnly;
+	}
+
+	VMKernel.invalidateTLBEntry(this, vpn);
+
+	// keep the page from looking like the clock's next victim
+	if (entry.valid)
+	    entry.used = true;
+
+	VMKernel.pagingLock.release();
+
+	return writable;
+    }
+
+    /**
+     * Bring a virtual page into physical memory. The page is read back from
+     * swap if it was swapped out, loaded from the executable if it belongs
+     * to a COFF section, and zero-filled otherwise. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page to load.
+     * @return	<tt>true</tt> if the page is now resident.
+     */
+    private boolean pageIn(int vpn) {
+	waitForPrefetch(vpn, vpn+1);
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	// above the program's own pages, only mapped files are addressable
+	if (vpn >= numPages && mappings[vpn] == null)
+	    return false;
+
+	int ppn = VMKernel.allocateFrame();
+	if (ppn == -1)
+	    return false;
+
+	numPageFaults++;
+	VMKernel.numPageFaults++;
+
+	if (swapSlots[vpn] != -1) {
+	    Lib.debug(dbgVM, "\tswapping in vpn " + vpn + " from slot "
+		      + swapSlots[vpn]);
+	    VMKernel.readSwap(swapSlots[vpn], ppn);
+	    numSwapReads++;
+	}
+	else {
+	    loadPage(vpn, ppn);
+	}
+
+	mapPage(vpn, ppn);
+
+	// the faulting access has not happened yet, so give the page a chance
+	entry.used = true;
+	return true;
+    }
+
+    /**
+     * Fill a physical page with the initial contents of a virtual page that
+     * is not in swap: from the mapped file or COFF section it belongs to, or
+     * with zeros.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page to fill.
+     */
+    private void loadPage(int vpn, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	MappedFile mapping = mappings[vpn];
+	CoffSection section = getSection(vpn);
+
+	if (mapping != null) {
+	    Lib.debug(dbgVM, "\tloading vpn " + vpn + " from mapped file");
+	    int offset = (vpn-mapping.firstVPN)*pageSize;
+	    int amount = Math.min(pageSize, mapping.length-offset);
+
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    mapping.file.read(offset, memory, ppn*pageSize, amount);
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "\tloading vpn " + vpn + " from "
+		      + section.getName());
+	    section.loadPage(vpn-section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling vpn " + vpn);
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+    }
+
+    /**
+     * Write a resident page of a mapped file back to the file.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void writeBack(int vpn) {
+	MappedFile mapping = mappings[vpn];
+	int offset = (vpn-mapping.firstVPN)*pageSize;
+	int amount = Math.min(pageSize, mapping.length-offset);
+
+	Lib.debug(dbgVM, "\twriting back vpn " + vpn + " to mapped file");
+
+	byte[] memory = Machine.processor().getMemory();
+	mapping.file.write(offset, memory, pageTable[vpn].ppn*pageSize, amount);
+    }
+
+    /**
+     * Map a physical page that has just been filled at a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	ppn	the physical page now holding its contents.
+     */
+    private void mapPage(int vpn, int ppn) {
+	CoffSection section = getSection(vpn);
+
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.readOnly = (section != null && section.isReadOnly());
+	entry.used = false;
+	entry.dirty = false;
+	copyOnWrite[vpn] = false;
+	prefetched[vpn] = false;
+
+	VMKernel.claimFrame(ppn, this, vpn);
+    }
+
+    /**
+     * Prefetch the non-resident pages in a range that are backed by the
+     * executable, a mapped file, or swap. Runs of pages in consecutive swap
+     * slots are read with a single I/O, and runs of pages in the same COFF
+     * section or mapped file are loaded together. Called by the pager thread
+     * in <tt>VMKernel</tt> with <tt>pagingLock</tt> held.
+     *
+     * <p>
+     * The lock is released while each run is read, so faults and evictions
+     * elsewhere are not held up by the pager's I/O. The frames being filled
+     * are not claimed until the read is done, so nothing can evict them.
+     * Anything that needs a page in transit waits for it with
+     * <tt>waitForPrefetch()</tt>, which also keeps the process's mappings
+     * and executable open until the read is done.
+     *
+     * @param	vpn	the first virtual page to prefetch.
+     * @param	count	the number of pages to prefetch.
+     */
+    void prefetch(int vpn, int count) {
+	int end = Math.min(vpn+count, pageTable.length);
+
+	while (vpn < end && !unloaded) {
+	    if (pageTable[vpn].valid || prefetching[vpn]) {
+		vpn++;
+		continue;
+	    }
+
+	    int slot = swapSlots[vpn];
+	    MappedFile mapping = mappings[vpn];
+	    CoffSection section = getSection(vpn);
+
+	    // a zero-filled page costs no I/O, so there is nothing to gain
+	    if (slot == -1 && mapping == null && section == null)
+		break;
+
+	    int run = 1;
+	    while (vpn+run < end && !pageTable[vpn+run].valid &&
+		   !prefetching[vpn+run]) {
+		if (slot != -1) {
+		    if (swapSlots[vpn+run] != slot+run)
+			break;
+		}
+		else if (swapSlots[vpn+run] != -1 ||
+			 mappings[vpn+run] != mapping ||
+			 getSection(vpn+run) != section) {
+		    break;
+		}
+		run++;
+	    }
+
+	    int[] ppns = new int[run];
+	    for (int i=0; i<run; i++) {
+		ppns[i] = VMKernel.allocateFrame();
+		if (ppns[i] == -1) {
+		    for (int j=0; j<i; j++)
+			UserKernel.freePage(ppns[j]);
+		    return;
+		}
+	    }
+
+	    for (int i=0; i<run; i++)
+		prefetching[vpn+i] = true;
+
+	    if (slot != -1) {
+		Lib.debug(dbgVM, "\tprefetching vpns " + vpn + "-"
+			  + (vpn+run-1) + " from slot " + slot);
+	    }
+	    else {
+		Lib.debug(dbgVM, "\tprefetching vpns " + vpn + "-"
+			  + (vpn+run-1));
+	    }
+
+	    VMKernel.pagingLock.release();
+
+	    if (slot != -1) {
+		VMKernel.readSwap(slot, ppns);
+	    }
+	    else {
+		for (int i=0; i<run; i++)
+		    loadPage(vpn+i, ppns[i]);
+	    }
+
+	    VMKernel.pagingLock.acquire();
+
+	    for (int i=0; i<run; i++) {
+		prefetching[vpn+i] = false;
+		mapPage(vpn+i, ppns[i]);
+		prefetched[vpn+i] = true;
+	    }
+
+	    VMKernel.prefetchArrived.wakeAll();
+
+	    if (slot != -1)
+		numSwapReads += run;
+	    numPrefetched += run;
+	    VMKernel.numPrefetched += run;
+	    vpn += run;
+	}
+    }
+
+    /**
+     * Wait until the pager has finished reading every page in a range. The
+     * caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	first	the first virtual page of the range.
+     * @param	last	the virtual page after the range.
+     */
+    private void waitForPrefetch(int first, int last) {
+	for (int vpn=first; vpn<last; vpn++) {
+	    while (prefetching[vpn])
+		VMKernel.prefetchArrived.sleep();
+	}
+    }
+
+    /**
+     * Note a reference that faulted in a page or found a prefetched one.
+     * Two such references to consecutive pages start a sequential run, and
+     * every further reference in the run asks the pager to prefetch the
+     * pages after it. The caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page referenced.
+     */
+    private void noteFault(int vpn) {
+	if (prefetched[vpn]) {
+	    prefetched[vpn] = false;
+	    numPrefetchHits++;
+	    VMKernel.numPrefetchHits++;
+	}
+
+	if (vpn == lastFaultVPN+1)
+	    sequentialFaults++;
+	else
+	    sequentialFaults = 0;
+	lastFaultVPN = vpn;
+
+	if (sequentialFaults > 0)
+	    VMKernel.requestPrefetch(this, vpn+1);
+    }
+
+    /**
+     * Unmap a resident page that is being evicted. Called by the clock
+     * algorithm in <tt>VMKernel</tt> with <tt>pagingLock</tt> held.
+     *
+     * @param	vpn	the virtual page being evicted.
+     * @return	<tt>true</tt> if the page was modified since it was last
+     *		loaded, and so must be written to swap.
+     */
+    boolean unmapPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	VMKernel.invalidateTLBEntry(this, vpn);
+
+	entry.valid = false;
+	copyOnWrite[vpn] = false;
+	prefetched[vpn] = false;
+	numEvictions++;
+
+	boolean dirty = entry.dirty;
+	entry.dirty = false;
+
+	// a mapped file is its own backing store
+	if (dirty && mappings[vpn] != null) {
+	    writeBack(vpn);
+	    dirty = false;
+	}
+
+	return dirty;
+    }
+
+    /**
+     * Replace the swap slot backing a virtual page, releasing the old one.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the new swap slot, whose reference the page takes.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	if (swapSlots[vpn] != -1)
+	    VMKernel.releaseSwapSlot(swapSlots[vpn]);
+
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Return the page table entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getPageEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Test whether a virtual page belongs to a shared memory segment. Those
+     * are the only pages above the program's own that no file is mapped at.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    private boolean isShared(int vpn) {
+	return vpn >= numPages && mappings[vpn] == null &&
+	    pageTable[vpn].valid;
+    }
+
+    /**
+     * Return the COFF section containing a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the section, or <tt>null</tt> if the page is a stack or
+     *		argument page.
+     */
+    private CoffSection getSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN()+section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Handle a TLB miss by finding the faulting page in the inverted page
+     * table, paging it in if it is not resident, and then loading its
+     * translation into the TLB, tagged with this process's ASID.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the TLB was refilled.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return false;
+
+	VMKernel.pagingLock.acquire();
+
+	numTLBMisses++;
+
+	if (isShared(vpn)) {
+	    // a shared page is always resident, and never in the core map
+	    VMKernel.loadTLBEntry(this, vpn, pageTable[vpn].ppn,
+				  pageTable[vpn].readOnly, false);
+	    VMKernel.pagingLock.release();
+	    return true;
+	}
+
+	if (VMKernel.lookupFrame(this, vpn) == -1) {
+	    if (!pageIn(vpn)) {
+		VMKernel.pagingLock.release();
+		return false;
+	    }
+	    noteFault(vpn);
+	}
+	else if (prefetched[vpn]) {
+	    // a minor fault: the pager already brought the page in
+	    noteFault(vpn);
+	}
+
+	int base = VMKernel.superPages ? findSuperPage(vpn) : -1;
+	if (base != -1) {
+	    VMKernel.loadTLBEntry(this, base, pageTable[base].ppn,
+				  pageTable[base].readOnly, true);
+	}
+	else {
+	    VMKernel.loadTLBEntry(this, vpn, pageTable[vpn].ppn,
+				  pageTable[vpn].readOnly, false);
+	}
+
+	VMKernel.pagingLock.release();
+	return true;
+    }
+
+    /**
+     * Find a superpage that can map a virtual page. The aligned group of
+     * <tt>Processor.pagesPerSuperPage</tt> pages containing it qualifies if
+     * every page in the group is resident, private to this process, and
+     * equally writable; the group is promoted by moving its pages into an
+     * aligned run of physical pages if they are not in one already. The
+     * caller must hold <tt>pagingLock</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the first virtual page of the superpage, or -1 if the page
+     *		must be mapped on its own.
+     */
+    private int findSuperPage(int vpn) {
+	int numPages = Processor.pagesPerSuperPage;
+	int base = vpn - vpn%numPages;
+	if (base+numPages > pageTable.length)
+	    return -1;
+
+	int[] ppns = new int[numPages];
+	boolean contiguous = true;
+
+	for (int i=0; i<numPages; i++) {
+	    TranslationEntry entry = pageTable[base+i];
+	    if (!entry.valid || entry.readOnly != pageTable[base].readOnly ||
+		!VMKernel.isPrivate(entry.ppn))
+		return -1;
+
+	    ppns[i] = entry.ppn;
+	    contiguous &= (ppns[i] == ppns[0]+i);
+	}
+
+	if (!(contiguous && ppns[0] % numPages == 0) &&
+	    !VMKernel.gatherFrames(ppns))
+	    return -1;
+
+	return base;
+    }
+
+    /**
+     * Report this process's paging statistics before terminating it.
+     */
+    protected void terminate(int status, boolean normal) {
+	if (Lib.test(dbgStats)) {
+	    UserKernel.console.flush();
+
+	    // read the clock here, since the final saveState() comes too late
+	    long ticks = runTicks;
+	    if (scheduledTime != -1)
+		ticks += Machine.timer().getTime() - scheduledTime;
+
+	    System.out.println("process " + processID + ": "
+			       + numPageFaults + " page faults in " + ticks
+			       + " ticks ("
+			       + (ticks == 0 ? 0 : numPageFaults*1000000L/ticks)
+			       + " per million), "
+			       + numTLBMisses + " TLB misses, "
+			       + numEvictions + " evictions, swap reads "
+			       + numSwapReads + ", writes " + numSwapWrites
+			       + ", prefetch hits " + numPrefetchHits + "/"
+			       + numPrefetched);
+	}
+
+	for (int fd : new ArrayList<Integer>(mappedFiles.keySet()))
+	    unmapFile(fd);
+
+	super.terminate(status, normal);
+    }
+
+    /**
+     * Handle a syscall exception. In addition to the syscalls handled by
+     * <tt>UserProcess</tt>, supports:
+     *
+     * <table>
+     * <tr><td>syscall#</td><td>syscall prototype</td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * </table>
+     *
+     * A file descriptor that is mapped cannot be used with <tt>read()</tt>,
+     * <tt>write()</tt>, <tt>readv()</tt>, <tt>writev()</tt>, or
+     * <tt>copyfile()</tt>, and closing it removes the mapping.
+     *
+     * @param	syscall	the syscall number.
+     * @param	a0	the first syscall argument.
+     * @param	a1	the second syscall argument.
+     * @param	a2	the third syscall argument.
+     * @param	a3	the fourth syscall argument.
+     * @return	the value to be returned to the user.
+     */
+    public int handleSyscall(int syscall, int a0, int a1, int a2, int a3) {
+	switch (syscall) {
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+	case syscallRead:
+	case syscallWrite:
+	case syscallReadv:
+	case syscallWritev:
+	    if (mappedFiles.containsKey(a0))
+		return -1;
+	    break;
+	case syscallCopyFile:
+	    if (mappedFiles.containsKey(a0) || mappedFiles.containsKey(a1))
+		return -1;
+	    break;
+	case syscallClose:
+	    unmapFile(a0);
+	    break;
+	}
+
+	return super.handleSyscall(syscall, a0, a1, a2, a3);
+    }
+
+    /**
+     * Handle the mmap() system call. The file is mapped at the page-aligned
+     * address, which must lie above the program's own pages and must not
+     * overlap another mapping. No page is read until it is first accessed.
+     */
+    private int handleMmap(int fd, int addr) {
+	OpenFile file = getFile(fd);
+	if (file == null || mappedFiles.containsKey(fd) ||
+	    Processor.offsetFromAddress(addr) != 0)
+	    return -1;
+
+	int length = file.length();
+	if (length < 0)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(addr);
+	int count = (length+pageSize-1) / pageSize;
+	if (firstVPN < numPages || (long) firstVPN+count > Processor.maxPages)
+	    return -1;
+
+	VMKernel.pagingLock.acquire();
+
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++) {
+	    if (vpn < pageTable.length &&
+		(mappings[vpn] != null || pageTable[vpn].valid)) {
+		VMKernel.pagingLock.release();
+		return -1;
+	    }
+	}
+
+	growAddressSpace(firstVPN+count);
+
+	MappedFile mapping = new MappedFile(file, firstVPN, count, length);
+	for (int vpn=firstVPN; vpn<firstVPN+count; vpn++)
+	    mappings[vpn] = mapping;
+	mappedFiles.put(fd, mapping);
+
+	VMKernel.pagingLock.release();
+
+	Lib.debug(dbgVM, "mapped fd " + fd + " at vpns " + firstVPN + "-"
+		  + (firstVPN+count-1));
+	return length;
+    }
+
+    /**
+     * Remove the mapping of a file descriptor, if it has one, writing its
+     * dirty pages back to the file.
+     *
+     * @param	fd	the file descriptor.
+     */
+    private void unmapFile(int fd) {
+	MappedFile mapping = mappedFiles.remove(fd);
+	if (mapping == null)
+	    return;
+
+	VMKernel.pagingLock.acquire();
+
+	waitForPrefetch(mapping.firstVPN, mapping.firstVPN+mapping.numPages);
+
+	for (int vpn=mapping.firstVPN;
+	     vpn<mapping.firstVPN+mapping.numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    if (entry.valid) {
+		// picks up the dirty bit from the TLB
+		VMKernel.invalidateTLBEntry(this, vpn);
+		if (entry.dirty)
+		    writeBack(vpn);
+
+		entry.valid = false;
+		prefetched[vpn] = false;
+		VMKernel.releaseFrame(entry.ppn, this);
+	    }
+
+	    mappings[vpn] = null;
+	}
+
+	VMKernel.pagingLock.release();
+    }
+
+    /**
+     * Allocate a physical page for a shared memory segment, evicting a page
+     * if necessary. Shared pages are not entered in the core map, so they
+     * stay resident until the segment is destroyed.
+     */
+    protected int allocateSharedPage() {
+	VMKernel.pagingLock.acquire();
+	int ppn = VMKernel.allocateFrame();
+	VMKernel.pagingLock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Map the pages of a shared memory segment above the end of the address
+     * space, extending the per-page arrays to match.
+     */
+    protected int mapSharedPages(int[] ppns) {
+	VMKernel.pagingLock.acquire();
+
+	int firstVPN = pageTable.length;
+	if ((long) firstVPN+ppns.length > Processor.maxPages) {
+	    VMKernel.pagingLock.release();
+	    return -1;
+	}
+
+	growAddressSpace(firstVPN+ppns.length);
+	for (int i=0; i<ppns.length; i++) {
+	    TranslationEntry entry = pageTable[firstVPN+i];
+	    entry.ppn = ppns[i];
+	    entry.valid = true;
+	}
+
+	VMKernel.pagingLock.release();
+	return firstVPN;
+    }
+
+    /**
+     * Extend the page table and the per-page arrays to cover at least the
+     * specified number of virtual pages. The caller must hold
+     * <tt>pagingLock</tt>.
+     *
+     * @param	length	the number of virtual pages to cover.
+     */
+    private void growAddressSpace(int length) {
+	int oldLength = pageTable.length;
+	if (length <= oldLength)
+	    return;
+
+	TranslationEntry[] newPageTable = Arrays.copyOf(pageTable, length);
+	for (int vpn=oldLength; vpn<length; vpn++)
+	    newPageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						     false, false);
+
+	copyOnWrite = Arrays.copyOf(copyOnWrite, length);
+	prefetched = Arrays.copyOf(prefetched, length);
+	prefetching = Arrays.copyOf(prefetching, length);
+	mappings = Arrays.copyOf(mappings, length);
+	swapSlots = Arrays.copyOf(swapSlots, length);
+	Arrays.fill(swapSlots, oldLength, length, -1);
+
+	pageTable = newPageTable;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,13 +878,107 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr))) {
+		Lib.debug(dbgVM, "Unable to handle TLB miss");
+		terminate(-1, false);
+	    }
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /**
+     * Note that another process uses an executable. Forked processes share
+     * their parent's executable, so that they can demand-page from it.
+     */
+    private static void referenceCoff(Coff coff) {
+	boolean intStatus = Machine.interrupt().disable();
+	Integer count = coffReferences.get(coff);
+	coffReferences.put(coff, count == null ? 1 : count+1);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop a reference to an executable, closing it when no process uses it.
+     */
+    private static void releaseCoff(Coff coff) {
+	boolean intStatus = Machine.interrupt().disable();
+	int count = coffReferences.get(coff);
+	if (count == 1)
+	    coffReferences.remove(coff);
+	else
+	    coffReferences.put(coff, count-1);
+	Machine.interrupt().restore(intStatus);
+
+	if (count == 1)
+	    coff.close();
+    }
+
+    /** The swap slot backing each virtual page, or -1 if it has none. */
+    protected int[] swapSlots = new int[0];
+    /** Pages prefetched by the pager that have not been referenced yet. */
+    protected boolean[] prefetched = new boolean[0];
+    /** Pages the pager is reading in, with <tt>pagingLock</tt> released. */
+    protected boolean[] prefetching = new boolean[0];
+    /** The mapped file backing each virtual page, or <tt>null</tt>. */
+    protected MappedFile[] mappings = new MappedFile[0];
+
+    /**
+     * A file mapped into the address space by <tt>mmap()</tt>.
+     */
+    protected static class MappedFile {
+	MappedFile(OpenFile file, int firstVPN, int numPages, int length) {
+	    this.file = file;
+	    this.firstVPN = firstVPN;
+	    this.numPages = numPages;
+	    this.length = length;
+	}
+
+	OpenFile file;
+	int firstVPN;
+	int numPages;
+	int length;
+    }
+
+    private HashMap<Integer,MappedFile> mappedFiles =
+	new HashMap<Integer,MappedFile>();
+
+    private boolean unloaded = false;
+    private int lastFaultVPN = -2;
+    private int sequentialFaults = 0;
+
+    /** The number of pages this process has faulted in. */
+    int numPageFaults = 0;
+    /** The number of TLB misses this process has taken. */
+    int numTLBMisses = 0;
+    /** The number of this process's pages that have been evicted. */
+    int numEvictions = 0;
+    /** The number of pages this process has read from swap. */
+    int numSwapReads = 0;
+    /** The number of pages written to swap when evicted from this process. */
+    int numSwapWrites = 0;
+    /** The number of pages the pager has prefetched for this process. */
+    int numPrefetched = 0;
+    /** The number of prefetched pages this process has gone on to use. */
+    int numPrefetchHits = 0;
+
+    private long runTicks = 0;
+    private long scheduledTime = -1;
+
+    /** This process's address space identifier, or -1 if it has none. */
+    int asid = -1;
+
+    private static HashMap<Coff,Integer> coffReferences =
+	new HashMap<Coff,Integer>();
+
+    private static final int syscallMmap = 10;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
+    private static final char dbgStats = 's';
 }
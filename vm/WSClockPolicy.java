@@ -0,0 +1,75 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock page replacement policy. Like the clock policy, a hand sweeps
+ * the physical pages, but each page also records the last time it was seen
+ * in use. A page unused for longer than the working set window
+ * (<tt>WSClockPolicy.window</tt> ticks) is outside its process's working set
+ * and may be evicted; clean pages are preferred, because they need not be
+ * written to swap.
+ *
+ * <p>
+ * Nachos has no asynchronous page cleaner, so when every old page is dirty
+ * the first one found is evicted. When no page is old, the least recently
+ * used page is evicted.
+ */
+public class WSClockPolicy implements PageReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(int numPhysPages) {
+	this.numPhysPages = numPhysPages;
+	lastUsed = new long[numPhysPages];
+	window = Config.getInteger("WSClockPolicy.window", 20000);
+    }
+
+    public void pageLoaded(int ppn, VMProcess process, int vpn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public void pageFreed(int ppn) {
+    }
+
+    public int chooseVictim() {
+	long time = Machine.timer().getTime();
+
+	int oldDirty = -1, oldest = -1;
+
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!VMKernel.isResident(ppn))
+		continue;
+
+	    if (VMKernel.testAndClearUsed(ppn)) {
+		lastUsed[ppn] = time;
+	    }
+	    else if (time - lastUsed[ppn] > window) {
+		if (!VMKernel.isDirty(ppn))
+		    return ppn;
+
+		if (oldDirty == -1)
+		    oldDirty = ppn;
+	    }
+
+	    if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest])
+		oldest = ppn;
+	}
+
+	return (oldDirty != -1) ? oldDirty : oldest;
+    }
+
+    public void processExited(int pid) {
+    }
+
+    private int numPhysPages;
+    private int hand = 0;
+    private long[] lastUsed;
+    private long window;
+}